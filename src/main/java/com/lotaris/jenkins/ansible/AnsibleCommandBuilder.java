@@ -1,23 +1,42 @@
 package com.lotaris.jenkins.ansible;
 
 import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.LayeredVariables;
 import com.lotaris.jenkins.ansible.model.Playbook;
+import com.lotaris.jenkins.ansible.yaml.AnsibleConfigurationException;
 import com.lotaris.jenkins.ansible.yaml.AnsibleYamlLoader;
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Extension;
+import hudson.Proc;
+import hudson.Util;
 import hudson.util.FormValidation;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Item;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.ComboBoxModel;
+import hudson.util.ForkOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import net.sf.json.JSONObject;
+import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.QueryParameter;
 import javax.servlet.ServletException;
@@ -28,6 +47,11 @@ import javax.servlet.ServletException;
  * @author Laurent Prevost <laurent.prevost@lotaris.com>
  */
 public class AnsibleCommandBuilder extends Builder {
+	/**
+	 * Template of the host parameter
+	 */
+	private static final Pattern HOST_TEMPLATE = Pattern.compile("\\{\\{( *)host( *)\\}\\}");
+
 	/**
 	 * The configuration file to read
 	 */
@@ -48,6 +72,61 @@ public class AnsibleCommandBuilder extends Builder {
 	 */
 	private final String parameters;
 
+	/**
+	 * Share the run of identical concurrent invocations
+	 */
+	private boolean coalesceIdenticalRuns;
+
+	/**
+	 * Resume from the failing task of the previous build
+	 */
+	private boolean resumeFromFailedTask;
+
+	/**
+	 * Retry once from the failing task when the playbook fails
+	 */
+	private boolean retryFromFailedTask;
+
+	/**
+	 * Wall time cap of the process tree in minutes, 0 for no cap
+	 */
+	private int maxWallTimeMinutes;
+
+	/**
+	 * Resident set size cap of the process tree in megabytes, 0 for no cap
+	 */
+	private int maxRssMegabytes;
+
+	/**
+	 * Write in the build log which layer each variable and property comes from
+	 */
+	private boolean debugVariables;
+
+	/**
+	 * Let the build parameters override the variables and properties of the same name
+	 */
+	private boolean buildParametersOverride;
+
+	/**
+	 * Run the hosts of the playbook by adaptive batches
+	 */
+	private boolean rollingUpdate;
+
+	/**
+	 * Number of hosts of the first batch of a rolling update
+	 */
+	private int canarySize = 1;
+
+	/**
+	 * Maximum number of hosts of a batch of a rolling update, 0 for no maximum
+	 */
+	private int maxBatchSize;
+
+	/**
+	 * Share of the hosts allowed to fail before a rolling update is aborted, in percent
+	 */
+	private int failureBudgetPercent;
+
 	@DataBoundConstructor
 	public AnsibleCommandBuilder(String configurationFile, String workspace, String playbookName, String parameters) {
 		this.configurationFile = configurationFile;
@@ -71,43 +150,115 @@ public class AnsibleCommandBuilder extends Builder {
 	public String getWorkspace() {
 		return workspace;
 	}
+
+	public boolean isCoalesceIdenticalRuns() {
+		return coalesceIdenticalRuns;
+	}
+
+	@DataBoundSetter
+	public void setCoalesceIdenticalRuns(boolean coalesceIdenticalRuns) {
+		this.coalesceIdenticalRuns = coalesceIdenticalRuns;
+	}
+
+	public boolean isResumeFromFailedTask() {
+		return resumeFromFailedTask;
+	}
+
+	@DataBoundSetter
+	public void setResumeFromFailedTask(boolean resumeFromFailedTask) {
+		this.resumeFromFailedTask = resumeFromFailedTask;
+	}
+
+	public boolean isRetryFromFailedTask() {
+		return retryFromFailedTask;
+	}
+
+	@DataBoundSetter
+	public void setRetryFromFailedTask(boolean retryFromFailedTask) {
+		this.retryFromFailedTask = retryFromFailedTask;
+	}
+
+	public int getMaxWallTimeMinutes() {
+		return maxWallTimeMinutes;
+	}
+
+	@DataBoundSetter
+	public void setMaxWallTimeMinutes(int maxWallTimeMinutes) {
+		this.maxWallTimeMinutes = maxWallTimeMinutes;
+	}
+
+	public int getMaxRssMegabytes() {
+		return maxRssMegabytes;
+	}
+
+	@DataBoundSetter
+	public void setMaxRssMegabytes(int maxRssMegabytes) {
+		this.maxRssMegabytes = maxRssMegabytes;
+	}
+
+	public boolean isDebugVariables() {
+		return debugVariables;
+	}
+
+	@DataBoundSetter
+	public void setDebugVariables(boolean debugVariables) {
+		this.debugVariables = debugVariables;
+	}
+
+	public boolean isBuildParametersOverride() {
+		return buildParametersOverride;
+	}
+
+	@DataBoundSetter
+	public void setBuildParametersOverride(boolean buildParametersOverride) {
+		this.buildParametersOverride = buildParametersOverride;
+	}
+
+	public boolean isRollingUpdate() {
+		return rollingUpdate;
+	}
+
+	@DataBoundSetter
+	public void setRollingUpdate(boolean rollingUpdate) {
+		this.rollingUpdate = rollingUpdate;
+	}
+
+	public int getCanarySize() {
+		return canarySize;
+	}
+
+	@DataBoundSetter
+	public void setCanarySize(int canarySize) {
+		this.canarySize = canarySize;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	@DataBoundSetter
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public int getFailureBudgetPercent() {
+		return failureBudgetPercent;
+	}
+
+	@DataBoundSetter
+	public void setFailureBudgetPercent(int failureBudgetPercent) {
+		this.failureBudgetPercent = failureBudgetPercent;
+	}
 	
 	@Override
 	public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-		// Create a process
-		Launcher.ProcStarter ps = launcher.launch();
-
 		try {
 			// Retrieve the build parameters
-			EnvVars env = build.getEnvironment(listener);
-			
-			// Expend the file configuration path
-			String configurationFileExpanded = env.expand(configurationFile);
-//			configurationFileExpanded = Util.replaceMacro(configurationFileExpanded, build.getBuildVariableResolver());
+			EnvVars env = BuildEnvironmentSnapshot.get(build, listener);
 
-			ArgumentListBuilder cmdArguments = new ArgumentListBuilder("ansible-playbook");
-			
-			Ansible ans = AnsibleYamlLoader.load(configurationFileExpanded);
-			
-//			listener.getLogger().println("Ansible configuration: " + ans);
+			AnsibleRunResult result = execute(build, build.getWorkspace(), env, build.getBuildVariables(), launcher, listener);
 			
-			manageArguments(cmdArguments, ans, env);
-
-			if (workspace != null && !workspace.isEmpty()) {
-				ps = ps.pwd(env.expand(workspace));
-			}
-			else {
-				ps =ps.pwd(build.getWorkspace());
-			}
-			
-			ps = ps
-				.cmds(cmdArguments)
-				.stdout(listener.getLogger())
-				.stderr(listener.getLogger());
-
-			int rc = launcher.launch(ps).join();
-
-			if (rc == 0) {
+			if (result.getExitCode() == 0) {
 				return true;
 			}
 			else {
@@ -125,38 +276,361 @@ public class AnsibleCommandBuilder extends Builder {
 	}
 
 	/**
-	
-	/**
-	 * Build the command arguments
+	 * Run the playbook, from a build step or from a Pipeline step
 	 * 
-	 * @param argListBld The argument list builder
-	 * @param ans The Ansible configuration
+	 * @param run The run
+	 * @param ws The workspace of the run
 	 * @param env The build parameters
+	 * @param buildVariables The build variables overriding the variables and properties of the same name
+	 * @param launcher The launcher
+	 * @param listener The listener
+	 * @return The result of the playbook run
+	 * @throws IOException When the command cannot be run
+	 * @throws InterruptedException When the run is interrupted
 	 */
-	private void manageArguments(ArgumentListBuilder argListBld, Ansible ans, EnvVars env) {
-		// Check there is at least one playbook
-		if (ans.getPlaybooks() == null || ans.getPlaybooks().isEmpty()) {
-			throw new RuntimeException("No playbooks specified in the Ansible configuration file. It must be at least one defined.");
+	AnsibleRunResult execute(Run<?, ?> run, FilePath ws, EnvVars env, Map<String, String> buildVariables, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+
+		// Expend the file configuration path, relative to the workspace
+		String configurationFileExpanded = AnsibleRunCache.resolve(ws, env.expand(configurationFile));
+
+		ArgumentListBuilder cmdArguments = new ArgumentListBuilder("ansible-playbook");
+		
+		// The configuration is shared by all the steps of the run
+		AnsibleRunCache cache = AnsibleRunCache.of(run);
+		Ansible ans = cache.load(configurationFileExpanded);
+		
+//		listener.getLogger().println("Ansible configuration: " + ans);
+		
+		LayeredVariables properties = manageArguments(cmdArguments, ans, configurationFileExpanded, cache, env, buildVariables, listener);
+
+		String pwd;
+		if (workspace != null && !workspace.isEmpty()) {
+			pwd = env.expand(workspace);
+		}
+		else {
+			pwd = ws.getRemote();
 		}
+
+		List<String> command = cmdArguments.toList();
+
+		// Run the resolved hosts by batches
+		if (rollingUpdate) {
+			List<String> hosts = RollingPlan.parseHosts(properties.get("hosts"));
+			if (!hosts.isEmpty()) {
+				return executeRolling(run, launcher, listener, cmdArguments, command, pwd, configurationFileExpanded, hosts, start);
+			}
+			listener.getLogger().println("WARNING: No [hosts] property resolved for the playbook, the rolling update is not possible. Running the playbook on all its hosts at once.");
+		}
+
+		// Resume from the failing task of the previous build
+		AnsiblePlaybookProgressAction resumable = null;
+		if (resumeFromFailedTask) {
+			resumable = AnsiblePlaybookProgressAction.findResumable(run.getPreviousCompletedBuild(), command);
+		}
+
+		AnsiblePlaybookProgressAction progress = new AnsiblePlaybookProgressAction(command, resumable != null ? resumable.getFailedTask() : null);
+		run.addAction(progress);
+
+		long preparation = System.currentTimeMillis() - start;
+		int attempts = 1;
 		
-		// Retrieve the playbook to run
-		String expandedPlaybookName = env.expand(playbookName);
-		Playbook playbook = null;
-		for (Playbook pb : ans.getPlaybooks()) {
-			// Be sure the configuration file is correct
-			if (pb.getName() == null || pb.getName().isEmpty()) {
-				throw new RuntimeException("One playbook has no name. Playbook name is mandatory.");
+		int rc = runCommand(run, launcher, listener, resumeArguments(cmdArguments, resumable, listener), pwd, configurationFileExpanded, progress);
+
+		// Retry automatically from the failing task
+		if (rc != 0 && retryFromFailedTask && progress.isResumable()) {
+			listener.getLogger().println("Retrying the playbook from the failing task [" + progress.getFailedTask() + "].");
+
+			AnsiblePlaybookProgressAction retry = new AnsiblePlaybookProgressAction(command, progress.getFailedTask());
+			run.addAction(retry);
+
+			rc = runCommand(run, launcher, listener, resumeArguments(cmdArguments, progress, listener), pwd, configurationFileExpanded, retry);
+			progress = retry;
+			attempts++;
+		}
+
+		return new AnsibleRunResult(rc, progress.getRecap(), preparation, System.currentTimeMillis() - start - preparation, attempts, 0);
+	}
+
+	/**
+	 * Run the playbook by batches of hosts. The batches are sized from the duration and the
+	 * failures of the previous ones and the rollout stops once the failure budget is exceeded.
+	 * The resume and retry options do not apply to a rolling update.
+	 * 
+	 * @param run The run
+	 * @param launcher The launcher
+	 * @param listener The listener
+	 * @param cmdArguments The command arguments
+	 * @param command The resolved command
+	 * @param pwd The working directory
+	 * @param configurationFilePath The Ansible configuration file
+	 * @param hosts The hosts to run
+	 * @param start The time the preparation started
+	 * @return The result of the rollout, failed if any host failed
+	 * @throws IOException When the command cannot be started
+	 * @throws InterruptedException When the build is interrupted
+	 */
+	private AnsibleRunResult executeRolling(Run<?, ?> run, Launcher launcher, TaskListener listener, ArgumentListBuilder cmdArguments, List<String> command, String pwd, String configurationFilePath, List<String> hosts, long start) throws IOException, InterruptedException {
+		RollingPlan plan = new RollingPlan(hosts, canarySize, maxBatchSize, failureBudgetPercent);
+		Map<String, String> recap = new LinkedHashMap<String, String>();
+		int rc = 0;
+
+		long preparation = System.currentTimeMillis() - start;
+
+		listener.getLogger().println("Rolling update of [" + hosts.size() + "] hosts with a failure budget of [" + plan.getFailureBudget() + "] host(s).");
+
+		while (plan.hasNext()) {
+			List<String> batch = plan.next();
+			listener.getLogger().println((plan.getBatches() == 0 ? "Canary batch" : "Batch " + (plan.getBatches() + 1)) + " on hosts [" + Util.join(batch, ",") + "].");
+
+			AnsiblePlaybookProgressAction progress = new AnsiblePlaybookProgressAction(command, null);
+			run.addAction(progress);
+
+			long batchStart = System.currentTimeMillis();
+			int batchRc = runCommand(run, launcher, listener, cmdArguments.clone().add("--limit").add(Util.join(batch, ",")), pwd, configurationFilePath, progress);
+			long batchDuration = System.currentTimeMillis() - batchStart;
+
+			// Without a failing host in the output, the whole batch is considered failed
+			int failed = Math.min(batch.size(), progress.getFailedHosts().size());
+			if (batchRc != 0 && failed == 0) {
+				failed = batch.size();
+			}
+			if (batchRc != 0 && rc == 0) {
+				rc = batchRc;
+			}
+			recap.putAll(progress.getRecap());
+
+			plan.record(batch.size(), failed, batchDuration);
+
+			listener.getLogger().println(
+				"Batch of [" + batch.size() + "] host(s) done in " + Util.getTimeSpanString(batchDuration) + " with [" + failed + "] failed host(s). " +
+				"[" + plan.getFailedHosts() + "/" + plan.getFailureBudget() + "] of the failure budget used, [" + plan.getRemainingHosts() + "] host(s) remaining" +
+				(plan.hasNext() ? ", next batch of [" + plan.getBatchSize() + "] host(s)." : ".")
+			);
+		}
+
+		if (plan.getAbortReason() != null) {
+			listener.error("Rolling update aborted, [" + plan.getRemainingHosts() + "] host(s) not run. " + plan.getAbortReason());
+		}
+
+		return new AnsibleRunResult(rc, recap, preparation, System.currentTimeMillis() - start - preparation, 1, plan.getBatches());
+	}
+
+	/**
+	 * Run the command and record the playbook progress from its output, the
+	 * resources used by its process tree and the counters of its log pump
+	 * 
+	 * @param run The run
+	 * @param launcher The launcher
+	 * @param listener The listener
+	 * @param cmdArguments The command arguments
+	 * @param pwd The working directory
+	 * @param configurationFilePath The Ansible configuration file
+	 * @param progress The progress to record
+	 * @return The exit code of the command
+	 * @throws IOException When the command cannot be started
+	 * @throws InterruptedException When the build is interrupted
+	 */
+	private int runCommand(Run<?, ?> run, Launcher launcher, TaskListener listener, ArgumentListBuilder cmdArguments, String pwd, String configurationFilePath, AnsiblePlaybookProgressAction progress) throws IOException, InterruptedException {
+		Launcher.ProcStarter ps = launcher.launch()
+			.pwd(pwd)
+			.cmds(cmdArguments);
+
+		ProcessTreeMonitor monitor = new ProcessTreeMonitor(launcher.getChannel(), maxWallTimeMinutes * 60000L, maxRssMegabytes * 1024L);
+		AnsibleLogPump pump = new AnsibleLogPump(getDescriptor().getLogOverflowPolicy(), getDescriptor().getLogBufferKilobytes() * 1024L);
+
+		AnsibleOutputParser out = new AnsibleOutputParser(listener.getLogger(), progress);
+		try {
+			if (coalesceIdenticalRuns) {
+				return launchCoalesced(launcher, ps, out, listener, monitor, pump, invocationKey(launcher, cmdArguments, pwd, configurationFilePath));
+			}
+			else {
+				return launch(launcher, ps, out, monitor, pump);
+			}
+		}
+		finally {
+			out.close();
+
+			// Keep the log counters when the command has been run by this run
+			if (pump.isStarted()) {
+				AnsibleLogPumpAction counters = pump.getCounters();
+				run.addAction(counters);
+
+				listener.getLogger().println("Ansible log pump: " + counters);
+			}
+			
+			// Keep the resources used when the command has been run by this run
+			if (monitor.isStarted()) {
+				AnsibleResourceUsageAction usage = monitor.getUsage();
+				run.addAction(usage);
+				
+				listener.getLogger().println("Ansible resource usage: " + usage);
+				if (usage.getKillReason() != null) {
+					listener.error("The Ansible process tree has been killed. " + usage.getKillReason());
+				}
 			}
+		}
+	}
+
+	/**
+	 * Add the arguments to resume a playbook from its failing task on the failing hosts.
+	 * 
+	 * @param cmdArguments The command arguments
+	 * @param resumable The progress of the failed run, null to run the whole playbook
+	 * @param listener The listener
+	 * @return The command arguments to run
+	 */
+	private ArgumentListBuilder resumeArguments(ArgumentListBuilder cmdArguments, AnsiblePlaybookProgressAction resumable, TaskListener listener) {
+		if (resumable == null) {
+			return cmdArguments;
+		}
+
+		String hosts = Util.join(resumable.getFailedHosts(), ",");
+
+		listener.getLogger().println("Resuming the playbook at task [" + resumable.getFailedTask() + "] on hosts [" + hosts + "].");
+		listener.getLogger().println("WARNING: The tasks before [" + resumable.getFailedTask() + "] are skipped. Facts gathered and variables registered by these tasks are not available, and handlers notified by them will not run.");
+		listener.getLogger().println("WARNING: The hosts that did not fail are not run again.");
+
+		if (resumable.getLastStartedTask() != null && !resumable.getLastStartedTask().equals(resumable.getFailedTask())) {
+			listener.getLogger().println("WARNING: The failed run went on up to task [" + resumable.getLastStartedTask() + "] on the other hosts. These tasks will run again.");
+		}
+
+		return cmdArguments.clone()
+			.add("--start-at-task").add(resumable.getFailedTask())
+			.add("--limit").add(hosts);
+	}
+
+	/**
+	 * Launch the command and wait for its completion
+	 * 
+	 * @param launcher The launcher
+	 * @param ps The process ready to be started
+	 * @param out The stream where the command output goes
+	 * @param monitor The monitor of the process tree
+	 * @param pump The pump between the command and the stream where its output goes
+	 * @return The exit code of the command
+	 * @throws IOException When the command cannot be started
+	 * @throws InterruptedException When the build is interrupted
+	 */
+	private int launch(Launcher launcher, Launcher.ProcStarter ps, OutputStream out, ProcessTreeMonitor monitor, AnsibleLogPump pump) throws IOException, InterruptedException {
+		pump.start(out);
+		try {
+			Proc proc = launcher.launch(ps.stdout(pump.getStdout()).stderr(pump.getStderr()).envs(monitor.getMarker()));
+			
+			monitor.start(proc);
+			try {
+				return proc.join();
+			}
+			finally {
+				monitor.stop();
+			}
+		}
+		finally {
+			// Write the output still in the pump before going on
+			pump.stop();
+		}
+	}
+
+	/**
+	 * Launch the command unless an identical invocation is already running. In that
+	 * case, the output of the running invocation is followed and its exit code is shared.
+	 * 
+	 * @param launcher The launcher
+	 * @param ps The process ready to be started
+	 * @param out The stream where the command output goes
+	 * @param listener The listener
+	 * @param monitor The monitor of the process tree
+	 * @param pump The pump between the command and the stream where its output goes
+	 * @param key The key of the fully resolved invocation
+	 * @return The exit code of the command
+	 * @throws IOException When the command cannot be started
+	 * @throws InterruptedException When the build is interrupted
+	 */
+	private int launchCoalesced(Launcher launcher, Launcher.ProcStarter ps, OutputStream out, TaskListener listener, ProcessTreeMonitor monitor, AnsibleLogPump pump, String key) throws IOException, InterruptedException {
+		while (true) {
+			SingleFlightInvocation invocation = new SingleFlightInvocation(key);
+			SingleFlightInvocation leader = SingleFlightInvocation.register(invocation);
 			
-			if (pb.getName().equals(expandedPlaybookName)) {
-				playbook = pb;
-				break;
+			// Nobody runs the same command, this build is the leader
+			if (leader == null) {
+				Integer rc = null;
+				try {
+					rc = launch(launcher, ps, new ForkOutputStream(out, invocation), monitor, pump);
+					return rc;
+				}
+				finally {
+					invocation.complete(rc);
+				}
 			}
+
+			listener.getLogger().println("An identical Ansible invocation is already running, following its output.");
+			Integer rc = leader.follow(out);
+			
+			if (rc != null) {
+				listener.getLogger().println("Identical Ansible invocation finished with exit code [" + rc + "].");
+				return rc;
+			}
+			
+			// The leader was not able to run the command or to share its output, try again on our own
+			listener.getLogger().println("The identical Ansible invocation did not complete or could not share its output, running the command.");
 		}
+	}
+
+	/**
+	 * Compute the key identifying a fully resolved invocation. The same command only
+	 * runs the same way on the same node. The command gets the environment of its node,
+	 * the build variables are passed as arguments, so the node stands for the environment.
+	 * 
+	 * @param launcher The launcher
+	 * @param cmdArguments The command arguments
+	 * @param pwd The working directory
+	 * @param configurationFilePath The Ansible configuration file
+	 * @return The key of the invocation
+	 * @throws IOException When the configuration file cannot be read
+	 */
+	private String invocationKey(Launcher launcher, ArgumentListBuilder cmdArguments, String pwd, String configurationFilePath) throws IOException {
+		Computer computer = launcher.getComputer();
+		String node = computer != null ? computer.getName() : String.valueOf(launcher.getChannel());
+
+		return Util.getDigestOf(
+			cmdArguments.toList() + "\n" +
+			pwd + "\n" +
+			node + "\n" +
+			AnsibleYamlLoader.fingerprint(configurationFilePath)
+		);
+	}
 
-		// No playbook found
-		if (playbook == null) {
-			throw new RuntimeException("Unable to find the playbook [" + expandedPlaybookName + "] in the Ansible configuration file.");
+	/**
+	 * Build the command arguments
+	 * 
+	 * @param argListBld The argument list builder
+	 * @param ans The Ansible configuration
+	 * @param configurationFilePath The Ansible configuration file
+	 * @param cache The cache of the run
+	 * @param env The build parameters
+	 * @param buildVariables The build variables, overriding the variables and properties of the same name when enabled
+	 * @param listener The listener
+	 * @return The properties resolved
+	 * @throws AnsibleConfigurationException When the playbook to run cannot be used
+	 */
+	private LayeredVariables manageArguments(ArgumentListBuilder argListBld, Ansible ans, String configurationFilePath, AnsibleRunCache cache, EnvVars env, Map<String, String> buildVariables, TaskListener listener) throws AnsibleConfigurationException {
+		// Retrieve and check the playbook to run, as the pre-warm on checkout does
+		Playbook playbook = cache.playbook(ans, configurationFilePath, Util.fixNull(env.expand(playbookName)));
+
+		// Resolve the global, playbook and build layers, the build layer is opt-in
+		Map<String, String> overrides = buildParametersOverride ? buildVariables : Collections.<String, String>emptyMap();
+		LayeredVariables vars = PlaybookVariables.vars(ans, playbook, overrides);
+		LayeredVariables properties = PlaybookVariables.properties(ans, playbook, overrides);
+
+		if (debugVariables) {
+			listener.getLogger().println("Ansible variables resolved:");
+			for (String line : vars.explain()) {
+				listener.getLogger().println("  " + line);
+			}
+			listener.getLogger().println("Ansible properties resolved:");
+			for (String line : properties.explain()) {
+				listener.getLogger().println("  " + line);
+			}
 		}
 
 		// Manage verbose level
@@ -169,7 +643,9 @@ public class AnsibleCommandBuilder extends Builder {
 		managePlaybook(argListBld, playbook);
 		
 		// Manage the extra variables
-		manageExtraParameters(argListBld, ans, playbook, env);
+		manageExtraParameters(argListBld, vars, properties, cache, env);
+
+		return properties;
 	}
 
 	/**
@@ -229,10 +705,6 @@ public class AnsibleCommandBuilder extends Builder {
 	 * @param playbook The playbook
 	 */
 	private void managePlaybook(ArgumentListBuilder argListBld, Playbook playbook) {
-		if (playbook.getFile() == null || playbook.getFile().isEmpty()) {
-			throw new RuntimeException("There is no playbook file specified for playbook [" + playbook.getName() + "]. The file is mandatory.");
-		}
-		
 		argListBld.add(playbook.getFile());
 	}
 	
@@ -240,33 +712,22 @@ public class AnsibleCommandBuilder extends Builder {
 	 * Manage the extra variables
 	 * 
 	 * @param argListBld The argument list
-	 * @param ans The Ansible configuration
-	 * @param playbook The playbook
+	 * @param vars The variables resolved
+	 * @param properties The properties resolved
+	 * @param cache The cache of the run
 	 * @param env The build parameters
 	 */
-	private void manageExtraParameters(ArgumentListBuilder argListBld, Ansible ans, Playbook playbook, EnvVars env) {
-		// Manage a map of extra parameters
-		Map<String, String> extraVars = new HashMap<String, String>();
-
-		// Expand specific variables
-		if (playbook.getVars() != null) {
-			for (Map.Entry<String, String> var : playbook.getVars().entrySet()) {
-				if (var.getKey() != null && var.getValue() != null) {
-					extraVars.put(var.getKey(), handleVariable(ans, playbook, var.getValue(), env));
-				}
-			}
-		}
-	
+	private void manageExtraParameters(ArgumentListBuilder argListBld, LayeredVariables vars, LayeredVariables properties, AnsibleRunCache cache, EnvVars env) {
 		// Add extra vars
-		if (!extraVars.isEmpty()) {
+		if (!vars.isEmpty()) {
 			StringBuilder sb = new StringBuilder();
 			
-			// Build the extra vars string
-			for (Map.Entry<String, String> var : extraVars.entrySet()) {
+			// Build the extra vars string, expanding each variable
+			for (String key : vars.keySet()) {
 				sb
-					.append(var.getKey())
+					.append(key)
 					.append("=")
-					.append(var.getValue())
+					.append(handleVariable(properties, vars.get(key), cache, env))
 					.append(" ");
 			}
 			
@@ -280,13 +741,13 @@ public class AnsibleCommandBuilder extends Builder {
 	 * Take care to replace the parameters value correctly trough the Jenkins filtering or
 	 * the Ansible plugin filtering.
 	 * 
-	 * @param ans Ansible configuration
-	 * @param playbook The playbook
+	 * @param properties The properties resolved
 	 * @param value The value to filter
+	 * @param cache The cache of the run with the compiled templates
 	 * @param env The build parameters to help the filtering
 	 * @return The value filtered
 	 */
-	private String handleVariable(Ansible ans, Playbook playbook, String value, EnvVars env) {
+	private String handleVariable(LayeredVariables properties, String value, AnsibleRunCache cache, EnvVars env) {
 		String resultValue = env.expand(value);
 
 		// Replace all parameters
@@ -297,17 +758,17 @@ public class AnsibleCommandBuilder extends Builder {
 					String[] var = param.split("=");
 					
 					// Specific behavior for host parameter which is an index of host present in the hosts list
-					if (var[0].equals("host") && playbook.getProperties() != null && playbook.getProperties().get("hosts") != null && !playbook.getProperties().get("hosts").isEmpty()) {
+					if (var[0].equals("host") && properties.get("hosts") != null && !properties.get("hosts").isEmpty()) {
 						try {
 							int hostIndex = Integer.parseInt(var[1]) - 1;
-							String[] hosts = playbook.getProperties().get("hosts").split(",");
+							String[] hosts = properties.get("hosts").split(",");
 
 							// Host index validation
 							if (hostIndex < 0 || hostIndex > hosts.length) {
 								throw new RuntimeException("The [host] parameter value should be a valid index (Should be >=1 and the number of hosts present in the properties.");
 							}
 
-							resultValue = resultValue.replaceAll("\\{\\{( *)host( *)\\}\\}", hosts[hostIndex]);
+							resultValue = HOST_TEMPLATE.matcher(resultValue).replaceAll(hosts[hostIndex]);
 						}
 						catch (NumberFormatException nfe) {
 							throw new RuntimeException("Unable to parse the [host] parameter which is an index of host.", nfe);
@@ -316,7 +777,7 @@ public class AnsibleCommandBuilder extends Builder {
 					
 					// Standard filtering
 					else {
-						resultValue = resultValue.replaceAll("\\{\\{( *)" + var[0] + " ( *)\\}\\}", var[1]);
+						resultValue = cache.template(var[0]).matcher(resultValue).replaceAll(var[1]);
 					}
 				}
 			}
@@ -325,6 +786,11 @@ public class AnsibleCommandBuilder extends Builder {
 		return resultValue;
 	}
 	
+	@Override
+	public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+		return Collections.singletonList(new AnsibleResourceUsageProjectAction(project));
+	}
+
 	@Override
 	public DescriptorImpl getDescriptor() {
 		return (DescriptorImpl) super.getDescriptor();
@@ -339,6 +805,20 @@ public class AnsibleCommandBuilder extends Builder {
 	 */
 	@Extension // This indicates to Jenkins that this is an implementation of an extension point.
 	public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+		/**
+		 * Default number of kilobytes of output the log pump can hold
+		 */
+		private static final int DEFAULT_LOG_BUFFER_KILOBYTES = 4096;
+
+		/**
+		 * What the log pump does when its buffer is full
+		 */
+		private LogOverflowPolicy logOverflowPolicy;
+
+		/**
+		 * Number of kilobytes of output the log pump can hold, 0 for the default
+		 */
+		private int logBufferKilobytes;
 
 		/**
 		 * In order to load the persisted global configuration, you have to call load() in the constructor.
@@ -356,13 +836,19 @@ public class AnsibleCommandBuilder extends Builder {
 		 * Note that returning {@link FormValidation#error(String)} does not prevent the form from being saved. It just means that a message will be displayed to
 		 * the user.
 		 */
-		public FormValidation doCheckConfigurationFile(@QueryParameter String value) throws IOException, ServletException {
+		public FormValidation doCheckConfigurationFile(@AncestorInPath AbstractProject<?, ?> project, @QueryParameter String value) throws IOException, ServletException {
 			if (value.length() == 0) {
 				return FormValidation.error("Please set a configuration file");
 			}
 			if (value.length() < 4) {
 				return FormValidation.warning("Isn't the configuration file	 too short?");
 			}
+
+			// Report the errors of the configuration when already known
+			PlaybookCatalog.Entry catalog = catalog(project, value);
+			if (catalog != null && catalog.getError() != null) {
+				return FormValidation.warning(catalog.getError());
+			}
 			return FormValidation.ok();
 		}
 
@@ -391,16 +877,124 @@ public class AnsibleCommandBuilder extends Builder {
 		 * Note that returning {@link FormValidation#error(String)} does not prevent the form from being saved. It just means that a message will be displayed to
 		 * the user.
 		 */
-		public FormValidation doCheckPlaybookName(@QueryParameter String value) throws IOException, ServletException {
+		public FormValidation doCheckPlaybookName(@AncestorInPath AbstractProject<?, ?> project, @QueryParameter String value, @QueryParameter String configurationFile) throws IOException, ServletException {
 			if (value.length() == 0) {
 				return FormValidation.error("Please set a playbook name");
 			}
 			if (value.length() < 2) {
 				return FormValidation.warning("Isn't the playbook name too short?");
 			}
+
+			// The name is only known at build time
+			if (value.contains("$")) {
+				return FormValidation.ok();
+			}
+
+			String path = project != null && project.hasPermission(Item.CONFIGURE) ? PlaybookCatalog.resolve(project, configurationFile) : null;
+			if (path != null && !PlaybookCatalog.isReadable(project, path)) {
+				return FormValidation.warning("The Ansible configuration file is outside the workspace of the job, the playbook name is checked when the build runs.");
+			}
+
+			PlaybookCatalog.Entry catalog = catalog(project, configurationFile);
+			if (catalog != null && catalog.getNames() != null && !catalog.getNames().contains(value)) {
+				return FormValidation.error("Unable to find the playbook [" + value + "] in the Ansible configuration file. Available playbooks: " + Util.join(catalog.getNames(), ", "));
+			}
 			return FormValidation.ok();
 		}
 
+		/**
+		 * Fills the playbook names available in the Ansible configuration file.
+		 *
+		 * @param project The job being configured
+		 * @param configurationFile The configuration file typed
+		 * @return The playbook names known, empty while the configuration is being read
+		 */
+		public ComboBoxModel doFillPlaybookNameItems(@AncestorInPath AbstractProject<?, ?> project, @QueryParameter String configurationFile) {
+			ComboBoxModel items = new ComboBoxModel();
+
+			PlaybookCatalog.Entry catalog = catalog(project, configurationFile);
+			if (catalog != null && catalog.getNames() != null) {
+				items.addAll(catalog.getNames());
+			}
+			return items;
+		}
+
+		/**
+		 * Retrieve the playbook catalog of a configuration file without waiting for it to be read.
+		 *
+		 * @param project The job being configured
+		 * @param configurationFile The configuration file typed
+		 * @return The catalog entry, null when unknown or not readable outside of a build
+		 */
+		private PlaybookCatalog.Entry catalog(AbstractProject<?, ?> project, String configurationFile) {
+			if (project == null || !project.hasPermission(Item.CONFIGURE)) {
+				return null;
+			}
+
+			String path = PlaybookCatalog.resolve(project, configurationFile);
+			return path != null && PlaybookCatalog.isReadable(project, path) ? PlaybookCatalog.get(path) : null;
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'maxWallTimeMinutes'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 * <p>
+		 * Note that returning {@link FormValidation#error(String)} does not prevent the form from being saved. It just means that a message will be displayed to
+		 * the user.
+		 */
+		public FormValidation doCheckMaxWallTimeMinutes(@QueryParameter String value) throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'maxRssMegabytes'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 * <p>
+		 * Note that returning {@link FormValidation#error(String)} does not prevent the form from being saved. It just means that a message will be displayed to
+		 * the user.
+		 */
+		public FormValidation doCheckMaxRssMegabytes(@QueryParameter String value) throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'canarySize'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 */
+		public FormValidation doCheckCanarySize(@QueryParameter String value) throws IOException, ServletException {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'maxBatchSize'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 */
+		public FormValidation doCheckMaxBatchSize(@QueryParameter String value) throws IOException, ServletException {
+			return FormValidation.validateNonNegativeInteger(value);
+		}
+
+		/**
+		 * Performs on-the-fly validation of the form field 'failureBudgetPercent'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 */
+		public FormValidation doCheckFailureBudgetPercent(@QueryParameter String value) throws IOException, ServletException {
+			FormValidation validation = FormValidation.validateNonNegativeInteger(value);
+			if (validation.kind == FormValidation.Kind.OK && Integer.parseInt(value) > 100) {
+				return FormValidation.error("The failure budget is a percentage of the hosts, it cannot exceed 100");
+			}
+			return validation;
+		}
+
 		/**
 		 * Performs on-the-fly validation of the form field 'parameters'.
 		 *
@@ -417,6 +1011,32 @@ public class AnsibleCommandBuilder extends Builder {
 			return FormValidation.ok();
 		}
 
+		/**
+		 * Performs on-the-fly validation of the global form field 'logBufferKilobytes'.
+		 *
+		 * @param value This parameter receives the value that the user has typed.
+		 * @return Indicates the outcome of the validation. This is sent to the browser.
+		 */
+		public FormValidation doCheckLogBufferKilobytes(@QueryParameter String value) throws IOException, ServletException {
+			return FormValidation.validatePositiveInteger(value);
+		}
+
+		public LogOverflowPolicy getLogOverflowPolicy() {
+			return logOverflowPolicy != null ? logOverflowPolicy : LogOverflowPolicy.BLOCK;
+		}
+
+		public void setLogOverflowPolicy(LogOverflowPolicy logOverflowPolicy) {
+			this.logOverflowPolicy = logOverflowPolicy;
+		}
+
+		public int getLogBufferKilobytes() {
+			return logBufferKilobytes > 0 ? logBufferKilobytes : DEFAULT_LOG_BUFFER_KILOBYTES;
+		}
+
+		public void setLogBufferKilobytes(int logBufferKilobytes) {
+			this.logBufferKilobytes = logBufferKilobytes;
+		}
+
 		public boolean isApplicable(Class<? extends AbstractProject> aClass) {
 			return true;
 		}
@@ -427,6 +1047,7 @@ public class AnsibleCommandBuilder extends Builder {
 
 		@Override
 		public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
+			req.bindJSON(this, formData);
 			save();
 			return super.configure(req, formData);
 		}
@@ -0,0 +1,178 @@
+package com.lotaris.jenkins.ansible;
+
+import com.lotaris.jenkins.ansible.yaml.AnsibleConfigurationException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.SCMListener;
+import hudson.scm.SCM;
+import hudson.scm.SCMRevisionState;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parse and validate the Ansible configurations of a build as soon as its checkout is done.
+ *
+ * The configurations used by the Ansible steps of the job are parsed in the background,
+ * which warms the parsed fragments of the loader before the steps need them. An invalid
+ * configuration is recorded in the cache of the run, and the next Ansible step of the
+ * build fails with the place of the error if it is still invalid then, even when the step
+ * uses another configuration. The build is never interrupted from the background.
+ *
+ * A configuration that does not exist yet is left to the steps, a step of the build
+ * may create it.
+ */
+@Extension
+public class AnsibleConfigurationPrewarm extends SCMListener {
+	private static final Logger LOGGER = Logger.getLogger(AnsibleConfigurationPrewarm.class.getName());
+
+	/**
+	 * Number of configurations parsed at the same time
+	 */
+	private static final int THREADS = Integer.getInteger(AnsibleConfigurationPrewarm.class.getName() + ".threads", 2);
+
+	/**
+	 * Number of configurations waiting to be parsed, the next ones are left to the steps
+	 */
+	private static final int QUEUE = Integer.getInteger(AnsibleConfigurationPrewarm.class.getName() + ".queue", 100);
+
+	/**
+	 * The pool parsing the configurations
+	 */
+	private static final ThreadPoolExecutor EXECUTOR;
+
+	static {
+		EXECUTOR = new ThreadPoolExecutor(
+			THREADS, THREADS,
+			60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(QUEUE),
+			new NamingThreadFactory(new DaemonThreadFactory(), "Ansible configuration pre-warm")
+		);
+		EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public void onCheckout(Run<?, ?> build, SCM scm, FilePath workspace, TaskListener listener, File changelogFile, SCMRevisionState pollingBaseline) throws Exception {
+		// Only the build steps of freestyle jobs are known before they run
+		if (!(build instanceof AbstractBuild) || !(build.getParent() instanceof Project)) {
+			return;
+		}
+
+		List<Step> steps = new ArrayList<Step>();
+		for (Builder builder : ((Project<?, ?>) build.getParent()).getBuilders()) {
+			if (builder instanceof AnsibleCommandBuilder) {
+				AnsibleCommandBuilder ansibleBuilder = (AnsibleCommandBuilder) builder;
+				steps.add(new Step(ansibleBuilder.getConfigurationFile(), true, ansibleBuilder.getPlaybookName()));
+			}
+			else if (builder instanceof AnsibleExtendVariablesBuilder) {
+				steps.add(new Step(((AnsibleExtendVariablesBuilder) builder).getConfigurationFile(), false, null));
+			}
+		}
+
+		if (steps.isEmpty()) {
+			return;
+		}
+
+		// The build wrappers are not set up yet, this environment is not shared with the steps
+		EnvVars env = build.getEnvironment(listener);
+		AnsibleRunCache cache = AnsibleRunCache.of(build);
+
+		for (Step step : steps) {
+			if (step.configurationFile == null || step.configurationFile.isEmpty()) {
+				continue;
+			}
+
+			String path = AnsibleRunCache.resolve(workspace, env.expand(step.configurationFile));
+			String playbookName = step.playbookName != null ? env.expand(step.playbookName) : null;
+
+			// Variables only known once the steps run
+			if (path.contains("$")) {
+				continue;
+			}
+
+			// The playbook is only checked when its name is known
+			if (playbookName != null && playbookName.contains("$")) {
+				playbookName = null;
+			}
+
+			FutureTask<Void> task = new FutureTask<Void>(new Prewarm(build, cache, new AnsibleRunCache.Check(path, step.runsPlaybook, playbookName)), null);
+			if (!cache.prewarming(path, task)) {
+				continue;
+			}
+
+			try {
+				EXECUTOR.execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				// Too many configurations waiting, the steps parse this one on their own
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * A configuration used by a step of the job, as configured
+	 */
+	private static final class Step {
+		private final String configurationFile;
+		private final boolean runsPlaybook;
+		private final String playbookName;
+
+		private Step(String configurationFile, boolean runsPlaybook, String playbookName) {
+			this.configurationFile = configurationFile;
+			this.runsPlaybook = runsPlaybook;
+			this.playbookName = playbookName;
+		}
+	}
+
+	/**
+	 * Parse and validate a configuration, recording it in the cache of the run when it is not valid
+	 */
+	private static final class Prewarm implements Runnable {
+		private final Run<?, ?> build;
+		private final AnsibleRunCache cache;
+		private final AnsibleRunCache.Check check;
+
+		private Prewarm(Run<?, ?> build, AnsibleRunCache cache, AnsibleRunCache.Check check) {
+			this.build = build;
+			this.cache = cache;
+			this.check = check;
+		}
+
+		public void run() {
+			try {
+				cache.validate(check);
+			}
+			catch (FileNotFoundException e) {
+				LOGGER.log(Level.FINE, "The Ansible configuration [{0}] of {1} does not exist yet", new Object[] { check.getConfigFilePath(), build });
+			}
+			catch (AnsibleConfigurationException e) {
+				// The next Ansible step of the build fails if it is still invalid
+				cache.invalid(check);
+			}
+			catch (IOException e) {
+				LOGGER.log(Level.FINE, "Unable to pre-warm the Ansible configuration [" + check.getConfigFilePath() + "] of " + build, e);
+			}
+			catch (RuntimeException e) {
+				LOGGER.log(Level.WARNING, "Unable to pre-warm the Ansible configuration [" + check.getConfigFilePath() + "] of " + build, e);
+			}
+		}
+	}
+}
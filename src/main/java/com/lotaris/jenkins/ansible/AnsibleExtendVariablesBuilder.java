@@ -1,7 +1,6 @@
 package com.lotaris.jenkins.ansible;
 
 import com.lotaris.jenkins.ansible.model.Ansible;
-import com.lotaris.jenkins.ansible.yaml.AnsibleYamlLoader;
 import hudson.EnvVars;
 import hudson.Launcher;
 import hudson.Extension;
@@ -59,17 +58,18 @@ public class AnsibleExtendVariablesBuilder extends Builder {
 	public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
 		try {
 			// Get the build variables
-			EnvVars env = build.getEnvironment(listener);
+			EnvVars env = BuildEnvironmentSnapshot.get(build, listener);
 			
-			// Expand the configuraiton file path
+			// Expand the configuraiton file path, relative to the workspace
 			String configurationFileExpanded = env.expand(configurationFile);
-			configurationFileExpanded = Util.replaceMacro(configurationFileExpanded, build.getBuildVariableResolver());
+			configurationFileExpanded = AnsibleRunCache.resolve(build.getWorkspace(), Util.replaceMacro(configurationFileExpanded, build.getBuildVariableResolver()));
 
-			Ansible ans = AnsibleYamlLoader.load(configurationFileExpanded);
+			Ansible ans = AnsibleRunCache.of(build).load(configurationFileExpanded);
 			
+			Map<String, String> buildVariables = build.getBuildVariables();
 			Map<String, String> extendedParameters = new HashMap<String, String>();
 			for (String propertyName : properties.split(",")) {
-				if (!build.getBuildVariables().containsKey(propertyName)) {
+				if (!buildVariables.containsKey(propertyName)) {
 					listener.getLogger().println("Parameter found for [" + propertyName + "] with value [" + ans.getProperties().get(propertyName) + "]");
 					extendedParameters.put(propertyName, ans.getProperties().get(propertyName));
 				}
@@ -77,6 +77,7 @@ public class AnsibleExtendVariablesBuilder extends Builder {
 			
 			if (extendedParameters.size() > 0) {
 				build.addAction(new AnsibleExtendVariablesAction(extendedParameters));
+				BuildEnvironmentSnapshot.invalidate(build);
 			}
 			
 			return true;
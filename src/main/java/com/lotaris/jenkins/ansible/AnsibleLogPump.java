@@ -0,0 +1,499 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.Computer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pump between the Ansible command and the build log, so a slow log does not stall
+ * the command as long as the buffer has room.
+ *
+ * The standard output and error are cut in lines on their own, which keeps each line
+ * whole and the order of each source. The lines are kept with the time they were read
+ * in a buffer bounded in bytes and written to the log by batches from another thread. When
+ * the buffer is full, the {@link LogOverflowPolicy} decides what happens to the next lines.
+ * A line longer than the whole buffer is let in alone, when the buffer is empty.
+ */
+class AnsibleLogPump implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(AnsibleLogPump.class.getName());
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Maximum number of lines written to the log at once
+	 */
+	private static final int BATCH = 512;
+
+	/**
+	 * Memory used by a buffered line on top of its content, in bytes
+	 */
+	private static final int LINE_OVERHEAD = 64;
+
+	/**
+	 * What to do when the buffer is full
+	 */
+	private final LogOverflowPolicy policy;
+
+	/**
+	 * Number of bytes the buffer can hold
+	 */
+	private final long capacity;
+
+	/**
+	 * The lines waiting to be written, the oldest first
+	 */
+	private final Deque<Line> buffer = new ArrayDeque<Line>();
+
+	/**
+	 * Number of bytes held by the buffer
+	 */
+	private long bufferedBytes;
+
+	/**
+	 * Lines dropped since the last line kept
+	 */
+	private int pendingCoalesced;
+
+	/**
+	 * Whether the producers have finished
+	 */
+	private boolean closed;
+
+	/**
+	 * Whether the log cannot be written anymore, the lines are then dropped
+	 */
+	private boolean failed;
+
+	private final OutputStream stdout = new Source(false);
+	private final OutputStream stderr = new Source(true);
+
+	private OutputStream sink;
+	private Future<?> consumer;
+
+	private File spillFile;
+	private DataOutputStream spillOut;
+	private DataInputStream spillIn;
+	private boolean spilling;
+	private boolean spillBroken;
+	private long spilledLines;
+	private long unspilledLines;
+
+	private long startMillis;
+	private long endMillis;
+	private long lines;
+	private long bytes;
+	private long batches;
+	private long stallNanos;
+	private long coalescedLines;
+	private long spilledBytes;
+	private long maxLagMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param policy What to do when the buffer is full
+	 * @param capacity Number of bytes the buffer can hold
+	 */
+	AnsibleLogPump(LogOverflowPolicy policy, long capacity) {
+		this.policy = policy;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * @return The stream where the standard output of the command goes
+	 */
+	OutputStream getStdout() {
+		return stdout;
+	}
+
+	/**
+	 * @return The stream where the standard error of the command goes
+	 */
+	OutputStream getStderr() {
+		return stderr;
+	}
+
+	/**
+	 * Start writing the lines to the log
+	 *
+	 * @param sink The stream where the lines are written
+	 */
+	synchronized void start(OutputStream sink) {
+		this.sink = sink;
+		this.startMillis = System.currentTimeMillis();
+		this.consumer = Computer.threadPoolForRemoting.submit(this);
+	}
+
+	/**
+	 * @return True if the pump has been started
+	 */
+	synchronized boolean isStarted() {
+		return consumer != null;
+	}
+
+	/**
+	 * Write the remaining lines once the command has finished. When interrupted, the
+	 * remaining lines are dropped.
+	 */
+	void stop() {
+		Future<?> c;
+		try {
+			// Flush the last lines without an end of line
+			stdout.close();
+			stderr.close();
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to flush the last lines of the Ansible command", e);
+		}
+
+		synchronized (this) {
+			closed = true;
+			c = consumer;
+			notifyAll();
+		}
+
+		try {
+			if (c != null) {
+				c.get();
+			}
+		}
+		catch (InterruptedException e) {
+			c.cancel(true);
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			LOGGER.log(Level.WARNING, "The Ansible log pump failed", e.getCause());
+		}
+		finally {
+			synchronized (this) {
+				endMillis = System.currentTimeMillis();
+				closeSpill();
+			}
+		}
+	}
+
+	/**
+	 * @return The counters of the pump
+	 */
+	synchronized AnsibleLogPumpAction getCounters() {
+		return new AnsibleLogPumpAction(
+			policy,
+			capacity / 1024,
+			endMillis - startMillis,
+			lines,
+			bytes,
+			batches,
+			stallNanos / 1000000,
+			coalescedLines,
+			spilledBytes,
+			maxLagMillis
+		);
+	}
+
+	@Override
+	public void run() {
+		try {
+			List<Line> batch;
+			while ((batch = take()) != null) {
+				write(batch);
+			}
+
+			int rest;
+			synchronized (this) {
+				rest = pendingCoalesced;
+				pendingCoalesced = 0;
+			}
+			if (rest > 0) {
+				sink.write(coalesced(rest));
+			}
+			sink.flush();
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to write the output of the Ansible command in the log", e);
+			synchronized (this) {
+				failed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Add a line read from the command
+	 *
+	 * @param error True for the standard error
+	 * @param b The line with its end of line
+	 * @param len Length of the line
+	 * @throws InterruptedIOException When interrupted while waiting for the log
+	 */
+	private synchronized void offer(boolean error, byte[] b, int len) throws InterruptedIOException {
+		Line line = new Line(System.currentTimeMillis(), error, Arrays.copyOf(b, len));
+
+		if (failed) {
+			return;
+		}
+
+		// Once spilling, keep spilling until the log has caught up to keep the order
+		if (policy == LogOverflowPolicy.SPILL && (spilling || isFull(line)) && spill(line)) {
+			return;
+		}
+
+		if (policy == LogOverflowPolicy.COALESCE && isFull(line) && !AnsibleOutputParser.isProgressLine(line.text())) {
+			coalescedLines++;
+			pendingCoalesced++;
+			return;
+		}
+
+		// Block, also when the spill file cannot be written: the line must come after the spilled ones
+		if (spilling || isFull(line)) {
+			long stallStart = System.nanoTime();
+			try {
+				while ((spilling || isFull(line)) && !failed) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the build log");
+			}
+			finally {
+				stallNanos += System.nanoTime() - stallStart;
+			}
+
+			if (failed) {
+				return;
+			}
+		}
+
+		line.coalescedBefore = pendingCoalesced;
+		pendingCoalesced = 0;
+
+		buffer.addLast(line);
+		bufferedBytes += line.size();
+		notifyAll();
+	}
+
+	/**
+	 * @param line The next line
+	 * @return True if the line does not fit in the buffer, a line always fits in an empty buffer
+	 */
+	private boolean isFull(Line line) {
+		return !buffer.isEmpty() && bufferedBytes + line.size() > capacity;
+	}
+
+	/**
+	 * Take the next lines to write, waiting for them when needed
+	 *
+	 * @return The lines to write, null when the producers have finished and everything is written
+	 * @throws InterruptedException When interrupted
+	 * @throws IOException When the spilled lines cannot be read
+	 */
+	private List<Line> take() throws InterruptedException, IOException {
+		long toUnspill;
+
+		synchronized (this) {
+			while (buffer.isEmpty() && unspilledLines == spilledLines && !closed) {
+				// The log has caught up, the lines can go in the buffer again
+				if (spilling) {
+					spilling = false;
+					notifyAll();
+				}
+				wait();
+			}
+
+			if (!buffer.isEmpty()) {
+				List<Line> batch = new ArrayList<Line>(Math.min(buffer.size(), BATCH));
+				while (!buffer.isEmpty() && batch.size() < BATCH) {
+					Line line = buffer.removeFirst();
+					bufferedBytes -= line.size();
+					batch.add(line);
+				}
+				notifyAll();
+				return batch;
+			}
+
+			if (unspilledLines == spilledLines) {
+				return null;
+			}
+
+			// The spilled lines come after the lines of the buffer
+			spillOut.flush();
+			toUnspill = Math.min(spilledLines - unspilledLines, BATCH);
+			unspilledLines += toUnspill;
+		}
+
+		// Only this thread reads the spill file
+		List<Line> batch = new ArrayList<Line>((int) toUnspill);
+		for (long i = 0; i < toUnspill; i++) {
+			long timestamp = spillIn.readLong();
+			boolean error = spillIn.readBoolean();
+			byte[] content = new byte[spillIn.readInt()];
+			spillIn.readFully(content);
+			batch.add(new Line(timestamp, error, content));
+		}
+		return batch;
+	}
+
+	/**
+	 * Write a batch of lines to the log
+	 *
+	 * @param batch The lines
+	 * @throws IOException When the log cannot be written
+	 */
+	private void write(List<Line> batch) throws IOException {
+		long written = 0;
+		long lag = 0;
+
+		for (Line line : batch) {
+			if (line.coalescedBefore > 0) {
+				sink.write(coalesced(line.coalescedBefore));
+			}
+			sink.write(line.content);
+			written += line.content.length;
+		}
+		sink.flush();
+
+		long now = System.currentTimeMillis();
+		for (Line line : batch) {
+			lag = Math.max(lag, now - line.timestamp);
+		}
+
+		synchronized (this) {
+			lines += batch.size();
+			bytes += written;
+			batches++;
+			maxLagMillis = Math.max(maxLagMillis, lag);
+		}
+	}
+
+	/**
+	 * Write a line to the spill file
+	 *
+	 * @param line The line
+	 * @return False if the spill file cannot be written, the line must then wait for the log
+	 */
+	private boolean spill(Line line) {
+		// A record may have been written in part, nothing more can be appended
+		if (spillBroken) {
+			return false;
+		}
+
+		try {
+			if (spillOut == null) {
+				spillFile = File.createTempFile("ansible-log", ".spill");
+				spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+				spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+			}
+
+			spillOut.writeLong(line.timestamp);
+			spillOut.writeBoolean(line.error);
+			spillOut.writeInt(line.content.length);
+			spillOut.write(line.content);
+
+			spilling = true;
+			spilledLines++;
+			spilledBytes += line.content.length;
+			notifyAll();
+			return true;
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to spill the output of the Ansible command to disk, waiting for the log instead", e);
+			spillBroken = true;
+			return false;
+		}
+	}
+
+	/**
+	 * Close and delete the spill file
+	 */
+	private void closeSpill() {
+		if (spillFile == null) {
+			return;
+		}
+
+		try {
+			spillOut.close();
+			spillIn.close();
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to close the spill file " + spillFile, e);
+		}
+
+		if (!spillFile.delete()) {
+			LOGGER.fine("Unable to delete the spill file " + spillFile);
+		}
+		spillFile = null;
+	}
+
+	/**
+	 * @param n Number of lines dropped
+	 * @return The line telling how many lines were dropped
+	 */
+	private static byte[] coalesced(int n) {
+		return ("[... " + n + " line(s) of output coalesced, the build log was too slow ...]\n").getBytes(UTF8);
+	}
+
+	/**
+	 * A line of the command output
+	 */
+	private static final class Line {
+		private final long timestamp;
+		private final boolean error;
+		private final byte[] content;
+		private int coalescedBefore;
+
+		private Line(long timestamp, boolean error, byte[] content) {
+			this.timestamp = timestamp;
+			this.error = error;
+			this.content = content;
+		}
+
+		/**
+		 * @return The memory used by the line in the buffer
+		 */
+		private long size() {
+			return content.length + LINE_OVERHEAD;
+		}
+
+		private String text() {
+			int len = content.length;
+			while (len > 0 && (content[len - 1] == '\n' || content[len - 1] == '\r')) {
+				len--;
+			}
+			return new String(content, 0, len, UTF8);
+		}
+	}
+
+	/**
+	 * Cut the output of one source in lines
+	 */
+	private final class Source extends LineTransformationOutputStream {
+		private final boolean error;
+
+		private Source(boolean error) {
+			this.error = error;
+		}
+
+		@Override
+		protected void eol(byte[] b, int len) throws IOException {
+			offer(error, b, len);
+		}
+	}
+}
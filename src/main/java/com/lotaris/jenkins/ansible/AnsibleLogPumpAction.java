@@ -0,0 +1,171 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.Util;
+import hudson.model.Action;
+
+/**
+ * Action to keep the counters of the log pump of an Ansible command: the output
+ * written to the log, the time the command was stalled by the log and what the
+ * overflow policy did with the output that did not fit in the buffer.
+ */
+public class AnsibleLogPumpAction implements Action {
+	/**
+	 * What was done when the buffer was full
+	 */
+	private final LogOverflowPolicy policy;
+
+	/**
+	 * Number of kilobytes the buffer could hold
+	 */
+	private final long bufferKilobytes;
+
+	/**
+	 * Time the pump has been running
+	 */
+	private final long wallTimeMillis;
+
+	/**
+	 * Lines written to the log
+	 */
+	private final long lines;
+
+	/**
+	 * Bytes written to the log
+	 */
+	private final long bytes;
+
+	/**
+	 * Number of writes to the log
+	 */
+	private final long batches;
+
+	/**
+	 * Time the command waited for the log
+	 */
+	private final long stallMillis;
+
+	/**
+	 * Lines dropped by the coalesce policy
+	 */
+	private final long coalescedLines;
+
+	/**
+	 * Bytes written to disk by the spill policy
+	 */
+	private final long spilledBytes;
+
+	/**
+	 * Longest time between reading a line and writing it to the log
+	 */
+	private final long maxLagMillis;
+
+	/**
+	 * Constructor
+	 *
+	 * @param policy What was done when the buffer was full
+	 * @param bufferKilobytes Number of kilobytes the buffer could hold
+	 * @param wallTimeMillis Time the pump has been running
+	 * @param lines Lines written to the log
+	 * @param bytes Bytes written to the log
+	 * @param batches Number of writes to the log
+	 * @param stallMillis Time the command waited for the log
+	 * @param coalescedLines Lines dropped by the coalesce policy
+	 * @param spilledBytes Bytes written to disk by the spill policy
+	 * @param maxLagMillis Longest time between reading a line and writing it to the log
+	 */
+	public AnsibleLogPumpAction(LogOverflowPolicy policy, long bufferKilobytes, long wallTimeMillis, long lines, long bytes, long batches, long stallMillis, long coalescedLines, long spilledBytes, long maxLagMillis) {
+		this.policy = policy;
+		this.bufferKilobytes = bufferKilobytes;
+		this.wallTimeMillis = wallTimeMillis;
+		this.lines = lines;
+		this.bytes = bytes;
+		this.batches = batches;
+		this.stallMillis = stallMillis;
+		this.coalescedLines = coalescedLines;
+		this.spilledBytes = spilledBytes;
+		this.maxLagMillis = maxLagMillis;
+	}
+
+	public LogOverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getBufferKilobytes() {
+		return bufferKilobytes;
+	}
+
+	public long getWallTimeMillis() {
+		return wallTimeMillis;
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getBatches() {
+		return batches;
+	}
+
+	public long getStallMillis() {
+		return stallMillis;
+	}
+
+	public long getCoalescedLines() {
+		return coalescedLines;
+	}
+
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	/**
+	 * @return The lines written per second
+	 */
+	public long getLinesPerSecond() {
+		return wallTimeMillis > 0 ? lines * 1000 / wallTimeMillis : 0;
+	}
+
+	/**
+	 * @return The kilobytes written per second
+	 */
+	public long getKilobytesPerSecond() {
+		return wallTimeMillis > 0 ? bytes * 1000 / wallTimeMillis / 1024 : 0;
+	}
+
+	public String getStallTime() {
+		return Util.getTimeSpanString(stallMillis);
+	}
+
+	public String getDisplayName() {
+		return "Ansible log pump";
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return
+			"Lines: " + lines + " (" + getLinesPerSecond() + "/s), " +
+			"Bytes: " + bytes + " (" + getKilobytesPerSecond() + " KB/s), " +
+			"Writes: " + batches + ", " +
+			"Stalled: " + getStallTime() + ", " +
+			"Max lag: " + maxLagMillis + " ms, " +
+			"Coalesced lines: " + coalescedLines + ", " +
+			"Spilled: " + spilledBytes + " bytes, " +
+			"Policy: " + policy + " (" + bufferKilobytes + " KB)";
+	}
+}
@@ -0,0 +1,126 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.console.LineTransformationOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Output stream that forwards the output of the Ansible command untouched and
+ * records the progress of the playbook from the streamed lines.
+ *
+ * Both the Ansible 1.x (<em>TASK: [name]</em>, <em>failed: [host]</em>) and the
+ * Ansible 2.x (<em>TASK [name]</em>, <em>fatal: [host]: FAILED!</em>) formats are supported.
+ */
+class AnsibleOutputParser extends LineTransformationOutputStream {
+	/**
+	 * Task start line
+	 */
+	private static final Pattern TASK = Pattern.compile("^TASK:? \\[(.+)\\] \\*+\\s*$");
+
+	/**
+	 * Host failure line, the delegated host is ignored
+	 */
+	private static final Pattern FAILURE = Pattern.compile("^(?:fatal|failed): \\[([^\\]\\s]+)(?: -> [^\\]]+)?\\]");
+
+	/**
+	 * Ignored failure line following a host failure
+	 */
+	private static final Pattern IGNORED = Pattern.compile("^\\.\\.\\.ignoring\\s*$");
+
+	/**
+	 * Play recap line
+	 */
+	private static final Pattern RECAP = Pattern.compile("^(\\S+)\\s+:\\s+(ok=\\d+\\s+changed=\\d+\\s+unreachable=(\\d+)\\s+failed=(\\d+).*?)\\s*$");
+
+	/**
+	 * Play start and play recap header lines
+	 */
+	private static final Pattern PLAY = Pattern.compile("^PLAY\\b");
+
+	/**
+	 * The stream where the output is forwarded
+	 */
+	private final OutputStream out;
+
+	/**
+	 * The progress to record
+	 */
+	private final AnsiblePlaybookProgressAction progress;
+
+	/**
+	 * The host of the last failure line
+	 */
+	private String lastFailedHost;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out The stream where the output is forwarded
+	 * @param progress The progress to record
+	 */
+	AnsibleOutputParser(OutputStream out, AnsiblePlaybookProgressAction progress) {
+		this.out = out;
+		this.progress = progress;
+	}
+
+	@Override
+	protected void eol(byte[] b, int len) throws IOException {
+		out.write(b, 0, len);
+		parse(trimEOL(new String(b, 0, len, "UTF-8")));
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Tell whether a line reports the progress of the playbook, such lines are never
+	 * dropped by the log pump.
+	 *
+	 * @param line The line without its end of line
+	 * @return True for the play, task, failure and recap lines
+	 */
+	static boolean isProgressLine(String line) {
+		return
+			PLAY.matcher(line).find() ||
+			TASK.matcher(line).find() ||
+			FAILURE.matcher(line).find() ||
+			IGNORED.matcher(line).find() ||
+			RECAP.matcher(line).find();
+	}
+
+	/**
+	 * Parse a line of the output
+	 *
+	 * @param line The line without its end of line
+	 */
+	private void parse(String line) {
+		Matcher matcher = TASK.matcher(line);
+		if (matcher.find()) {
+			progress.taskStarted(matcher.group(1));
+			lastFailedHost = null;
+			return;
+		}
+
+		matcher = FAILURE.matcher(line);
+		if (matcher.find()) {
+			lastFailedHost = matcher.group(1);
+			progress.hostFailed(lastFailedHost);
+			return;
+		}
+
+		if (lastFailedHost != null && IGNORED.matcher(line).find()) {
+			progress.hostFailureIgnored(lastFailedHost);
+			lastFailedHost = null;
+			return;
+		}
+
+		matcher = RECAP.matcher(line);
+		if (matcher.find()) {
+			progress.hostRecap(matcher.group(1), matcher.group(2).replaceAll("\\s+", " "), Integer.parseInt(matcher.group(3)) > 0 || Integer.parseInt(matcher.group(4)) > 0);
+		}
+	}
+}
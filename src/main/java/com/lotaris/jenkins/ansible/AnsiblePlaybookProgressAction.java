@@ -0,0 +1,175 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.model.Action;
+import hudson.model.Result;
+import hudson.model.Run;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Action to keep track of the progress of an Ansible playbook run. The last started
+ * task, the failing task and the failing hosts are recorded from the command output
+ * so a later run can resume from the failing task.
+ */
+public class AnsiblePlaybookProgressAction implements Action {
+	/**
+	 * The resolved command, without the resume arguments
+	 */
+	private final List<String> command;
+
+	/**
+	 * The task the run has been resumed from, null if the run was a full one
+	 */
+	private final String resumedFromTask;
+
+	/**
+	 * The last task started
+	 */
+	private String lastStartedTask;
+
+	/**
+	 * The first task where a host failed
+	 */
+	private String failedTask;
+
+	/**
+	 * The hosts that failed or were unreachable
+	 */
+	private final Set<String> failedHosts = new LinkedHashSet<String>();
+
+	/**
+	 * The play recap, by host
+	 */
+	private final Map<String, String> recap = new LinkedHashMap<String, String>();
+
+	/**
+	 * Constructor
+	 *
+	 * @param command The resolved command, without the resume arguments
+	 * @param resumedFromTask The task the run is resumed from, null for a full run
+	 */
+	public AnsiblePlaybookProgressAction(List<String> command, String resumedFromTask) {
+		this.command = new ArrayList<String>(command);
+		this.resumedFromTask = resumedFromTask;
+	}
+
+	/**
+	 * Retrieve the last run of a command that failed with a known failing task
+	 *
+	 * @param run The run where to look for the progress, can be null
+	 * @param command The resolved command, without the resume arguments
+	 * @return The progress of the failed run, null if there is nothing to resume from
+	 */
+	public static AnsiblePlaybookProgressAction findResumable(Run<?, ?> run, List<String> command) {
+		if (run == null || run.getResult() == null || !run.getResult().isWorseThan(Result.SUCCESS)) {
+			return null;
+		}
+
+		AnsiblePlaybookProgressAction resumable = null;
+		for (AnsiblePlaybookProgressAction progress : run.getActions(AnsiblePlaybookProgressAction.class)) {
+			if (progress.getCommand().equals(command)) {
+				resumable = progress.isResumable() ? progress : null;
+			}
+		}
+
+		return resumable;
+	}
+
+	public List<String> getCommand() {
+		return command;
+	}
+
+	public String getResumedFromTask() {
+		return resumedFromTask;
+	}
+
+	public synchronized String getLastStartedTask() {
+		return lastStartedTask;
+	}
+
+	public synchronized String getFailedTask() {
+		return failedTask;
+	}
+
+	public synchronized List<String> getFailedHosts() {
+		return new ArrayList<String>(failedHosts);
+	}
+
+	public synchronized Map<String, String> getRecap() {
+		return new LinkedHashMap<String, String>(recap);
+	}
+
+	/**
+	 * @return True if the run failed on a known task for known hosts
+	 */
+	public synchronized boolean isResumable() {
+		return failedTask != null && !failedHosts.isEmpty();
+	}
+
+	/**
+	 * Record a task start
+	 *
+	 * @param task The task name
+	 */
+	synchronized void taskStarted(String task) {
+		lastStartedTask = task;
+	}
+
+	/**
+	 * Record a host failure on the last started task
+	 *
+	 * @param host The host name
+	 */
+	synchronized void hostFailed(String host) {
+		if (failedTask == null) {
+			failedTask = lastStartedTask;
+		}
+		failedHosts.add(host);
+	}
+
+	/**
+	 * Forget a host failure when the error is ignored by the playbook
+	 *
+	 * @param host The host name
+	 */
+	synchronized void hostFailureIgnored(String host) {
+		failedHosts.remove(host);
+		if (failedHosts.isEmpty()) {
+			failedTask = null;
+		}
+	}
+
+	/**
+	 * Record the final status of a host from the play recap
+	 *
+	 * @param host The host name
+	 * @param summary The task counts of the host
+	 * @param failing True if the host has failed or unreachable tasks
+	 */
+	synchronized void hostRecap(String host, String summary, boolean failing) {
+		recap.put(host, summary);
+
+		if (failing) {
+			failedHosts.add(host);
+		}
+		else {
+			hostFailureIgnored(host);
+		}
+	}
+
+	public String getDisplayName() {
+		return "Ansible playbook progress";
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+}
@@ -0,0 +1,270 @@
+package com.lotaris.jenkins.ansible;
+
+import com.google.inject.Inject;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step to run an Ansible playbook from an Ansible configuration file, as the
+ * Ansible command runner build step does.
+ *
+ * The step returns a map with the exit code, the play recap by host and the timings. The
+ * loads of the configuration in progress, the playbook index and the parameter templates
+ * are shared by all the parallel branches of the run.
+ */
+public class AnsiblePlaybookStep extends AbstractStepImpl {
+	/**
+	 * The configuration file to read
+	 */
+	private final String configurationFile;
+
+	/**
+	 * The playbook to run
+	 */
+	private final String playbookName;
+
+	/**
+	 * The workspace where the command should be run
+	 */
+	private String workspace;
+
+	/**
+	 * Coma separated parameters
+	 */
+	private String parameters;
+
+	/**
+	 * Share the run of identical concurrent invocations
+	 */
+	private boolean coalesceIdenticalRuns;
+
+	/**
+	 * Resume from the failing task of the previous build
+	 */
+	private boolean resumeFromFailedTask;
+
+	/**
+	 * Retry once from the failing task when the playbook fails
+	 */
+	private boolean retryFromFailedTask;
+
+	/**
+	 * Fail the step when the playbook fails, otherwise the result is returned
+	 */
+	private boolean failOnError = true;
+
+	@DataBoundConstructor
+	public AnsiblePlaybookStep(String configurationFile, String playbookName) {
+		this.configurationFile = configurationFile;
+		this.playbookName = playbookName;
+	}
+
+	public String getConfigurationFile() {
+		return configurationFile;
+	}
+
+	public String getPlaybookName() {
+		return playbookName;
+	}
+
+	public String getWorkspace() {
+		return workspace;
+	}
+
+	@DataBoundSetter
+	public void setWorkspace(String workspace) {
+		this.workspace = workspace;
+	}
+
+	public String getParameters() {
+		return parameters;
+	}
+
+	@DataBoundSetter
+	public void setParameters(String parameters) {
+		this.parameters = parameters;
+	}
+
+	public boolean isCoalesceIdenticalRuns() {
+		return coalesceIdenticalRuns;
+	}
+
+	@DataBoundSetter
+	public void setCoalesceIdenticalRuns(boolean coalesceIdenticalRuns) {
+		this.coalesceIdenticalRuns = coalesceIdenticalRuns;
+	}
+
+	public boolean isResumeFromFailedTask() {
+		return resumeFromFailedTask;
+	}
+
+	@DataBoundSetter
+	public void setResumeFromFailedTask(boolean resumeFromFailedTask) {
+		this.resumeFromFailedTask = resumeFromFailedTask;
+	}
+
+	public boolean isRetryFromFailedTask() {
+		return retryFromFailedTask;
+	}
+
+	@DataBoundSetter
+	public void setRetryFromFailedTask(boolean retryFromFailedTask) {
+		this.retryFromFailedTask = retryFromFailedTask;
+	}
+
+	public boolean isFailOnError() {
+		return failOnError;
+	}
+
+	@DataBoundSetter
+	public void setFailOnError(boolean failOnError) {
+		this.failOnError = failOnError;
+	}
+
+	/**
+	 * @return The build step doing the actual work
+	 */
+	AnsibleCommandBuilder toBuilder() {
+		AnsibleCommandBuilder builder = new AnsibleCommandBuilder(configurationFile, workspace, playbookName, parameters);
+		builder.setCoalesceIdenticalRuns(coalesceIdenticalRuns);
+		builder.setResumeFromFailedTask(resumeFromFailedTask);
+		builder.setRetryFromFailedTask(retryFromFailedTask);
+		return builder;
+	}
+
+	/**
+	 * Execution of the step. The playbook runs outside of the Pipeline thread so the
+	 * parallel branches run their playbooks at the same time.
+	 */
+	public static class Execution extends AbstractStepExecutionImpl {
+		private static final long serialVersionUID = 1L;
+
+		@Inject
+		private transient AnsiblePlaybookStep step;
+
+		@StepContextParameter
+		private transient Run<?, ?> run;
+
+		@StepContextParameter
+		private transient FilePath ws;
+
+		@StepContextParameter
+		private transient EnvVars env;
+
+		@StepContextParameter
+		private transient Launcher launcher;
+
+		@StepContextParameter
+		private transient TaskListener listener;
+
+		/**
+		 * The playbook run
+		 */
+		private transient volatile Future<?> task;
+
+		/**
+		 * Whether the step has been completed, by the playbook run or by a stop
+		 */
+		private final AtomicBoolean completed = new AtomicBoolean();
+
+		@Override
+		public boolean start() throws Exception {
+			task = Computer.threadPoolForRemoting.submit(new Runnable() {
+				public void run() {
+					try {
+						// No build variables layer in a Pipeline, the parameters are read from the environment
+						AnsibleRunResult result = step.toBuilder().execute(run, ws, env, Collections.<String, String>emptyMap(), launcher, listener);
+
+						if (result.getExitCode() != 0 && step.isFailOnError()) {
+							fail(new AbortException("The playbook [" + step.getPlaybookName() + "] failed with exit code [" + result.getExitCode() + "]."));
+						}
+						else if (completed.compareAndSet(false, true)) {
+							getContext().onSuccess(result.toMap());
+						}
+					}
+					catch (Throwable t) {
+						// Also reached once stopped, the stop has already completed the step
+						fail(t);
+					}
+				}
+			});
+
+			return false;
+		}
+
+		@Override
+		public void stop(Throwable cause) throws Exception {
+			// Completed with the cause of the stop before the interrupted run reports its own failure
+			fail(cause);
+
+			Future<?> t = task;
+			if (t != null) {
+				t.cancel(true);
+			}
+		}
+
+		@Override
+		public void onResume() {
+			super.onResume();
+
+			// The playbook ran in a thread of the previous Jenkins, the process and its output are lost
+			fail(new AbortException("The Ansible playbook cannot be resumed after a restart of Jenkins. Run the build again, with resumeFromFailedTask to start from the failing task."));
+		}
+
+		/**
+		 * Fail the step unless it has already been completed
+		 *
+		 * @param cause The cause of the failure
+		 */
+		private void fail(Throwable cause) {
+			if (completed.compareAndSet(false, true)) {
+				getContext().onFailure(cause);
+			}
+		}
+	}
+
+	@Extension
+	public static final class DescriptorImpl extends AbstractStepDescriptorImpl {
+		public DescriptorImpl() {
+			super(Execution.class);
+		}
+
+		@Override
+		public String getFunctionName() {
+			return "ansiblePlaybook";
+		}
+
+		@Override
+		public String getDisplayName() {
+			return "Run an Ansible playbook from an Ansible configuration file";
+		}
+
+		/**
+		 * The options shared with the build step are documented with the build step
+		 */
+		@Override
+		public String getHelpFile(String fieldName) {
+			String helpFile = super.getHelpFile(fieldName);
+			if (helpFile == null && fieldName != null) {
+				helpFile = Jenkins.getInstance().getDescriptorByType(AnsibleCommandBuilder.DescriptorImpl.class).getHelpFile(fieldName);
+			}
+			return helpFile;
+		}
+	}
+}
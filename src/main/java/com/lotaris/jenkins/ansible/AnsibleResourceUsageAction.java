@@ -0,0 +1,140 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.Util;
+import hudson.model.Action;
+
+/**
+ * Action to keep the resources used by the process tree of an Ansible command.
+ * The figures are sampled from <em>/proc</em> at a low fixed rate, the short lived
+ * processes can therefore be missed.
+ */
+public class AnsibleResourceUsageAction implements Action {
+	/**
+	 * Wall time of the command
+	 */
+	private final long wallTimeMillis;
+
+	/**
+	 * User and system CPU time of the process tree
+	 */
+	private final long cpuTimeMillis;
+
+	/**
+	 * Highest resident set size of the process tree
+	 */
+	private final long peakRssKilobytes;
+
+	/**
+	 * Number of processes observed in the tree
+	 */
+	private final int processes;
+
+	/**
+	 * Bytes read and written by the process tree, sockets included
+	 */
+	private final long ioBytes;
+
+	/**
+	 * Number of samples taken
+	 */
+	private final int samples;
+
+	/**
+	 * The reason why the process tree was killed, null if it was not
+	 */
+	private final String killReason;
+
+	/**
+	 * Constructor
+	 *
+	 * @param wallTimeMillis Wall time of the command
+	 * @param cpuTimeMillis CPU time of the process tree
+	 * @param peakRssKilobytes Highest resident set size of the process tree
+	 * @param processes Number of processes observed
+	 * @param ioBytes Bytes read and written
+	 * @param samples Number of samples taken
+	 * @param killReason The reason why the process tree was killed, null if it was not
+	 */
+	public AnsibleResourceUsageAction(long wallTimeMillis, long cpuTimeMillis, long peakRssKilobytes, int processes, long ioBytes, int samples, String killReason) {
+		this.wallTimeMillis = wallTimeMillis;
+		this.cpuTimeMillis = cpuTimeMillis;
+		this.peakRssKilobytes = peakRssKilobytes;
+		this.processes = processes;
+		this.ioBytes = ioBytes;
+		this.samples = samples;
+		this.killReason = killReason;
+	}
+
+	public long getWallTimeMillis() {
+		return wallTimeMillis;
+	}
+
+	public long getCpuTimeMillis() {
+		return cpuTimeMillis;
+	}
+
+	public long getPeakRssKilobytes() {
+		return peakRssKilobytes;
+	}
+
+	public long getPeakRssMegabytes() {
+		return peakRssKilobytes / 1024;
+	}
+
+	public int getProcesses() {
+		return processes;
+	}
+
+	public long getIoBytes() {
+		return ioBytes;
+	}
+
+	public long getIoKilobytes() {
+		return ioBytes / 1024;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	public String getKillReason() {
+		return killReason;
+	}
+
+	public String getWallTime() {
+		return Util.getTimeSpanString(wallTimeMillis);
+	}
+
+	public String getCpuTime() {
+		return Util.getTimeSpanString(cpuTimeMillis);
+	}
+
+	/**
+	 * @return The share of the wall time spent on CPU, in percent
+	 */
+	public long getCpuPercent() {
+		return wallTimeMillis > 0 ? cpuTimeMillis * 100 / wallTimeMillis : 0;
+	}
+
+	public String getDisplayName() {
+		return "Ansible resource usage";
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return
+			"Wall time: " + getWallTime() + ", " +
+			"CPU time: " + getCpuTime() + " (" + getCpuPercent() + "%), " +
+			"Peak RSS: " + getPeakRssMegabytes() + " MB, " +
+			"Processes: " + processes + ", " +
+			"I/O: " + getIoKilobytes() + " KB";
+	}
+}
@@ -0,0 +1,77 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Action to show the trend of the resources used by the Ansible commands of a job.
+ */
+public class AnsibleResourceUsageProjectAction implements Action {
+	/**
+	 * Number of builds shown in the trend
+	 */
+	private static final int TREND_SIZE = 30;
+
+	/**
+	 * Number of the last builds looked at, so the history of a job that rarely runs
+	 * Ansible is not loaded from disk at each page view
+	 */
+	private static final int HISTORY_WINDOW = 100;
+
+	/**
+	 * The job
+	 */
+	private final AbstractProject<?, ?> project;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param project The job
+	 */
+	public AnsibleResourceUsageProjectAction(AbstractProject<?, ?> project) {
+		this.project = project;
+	}
+
+	public AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
+	/**
+	 * @return The last builds with resource usages among the last builds, the most recent first
+	 */
+	public List<AbstractBuild<?, ?>> getBuilds() {
+		List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+		for (AbstractBuild<?, ?> build : project.getBuilds().limit(HISTORY_WINDOW)) {
+			if (builds.size() == TREND_SIZE) {
+				break;
+			}
+			if (!build.getActions(AnsibleResourceUsageAction.class).isEmpty()) {
+				builds.add(build);
+			}
+		}
+		return builds;
+	}
+
+	/**
+	 * @param build The build
+	 * @return The resource usages of the Ansible commands of the build
+	 */
+	public List<AnsibleResourceUsageAction> getUsages(AbstractBuild<?, ?> build) {
+		return build.getActions(AnsibleResourceUsageAction.class);
+	}
+
+	public String getDisplayName() {
+		return "Ansible resource usage";
+	}
+
+	public String getIconFileName() {
+		return "graph.png";
+	}
+
+	public String getUrlName() {
+		return "ansibleResources";
+	}
+}
@@ -0,0 +1,326 @@
+package com.lotaris.jenkins.ansible;
+
+import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.Playbook;
+import com.lotaris.jenkins.ansible.yaml.AnsibleConfigurationException;
+import com.lotaris.jenkins.ansible.yaml.AnsibleYamlLoader;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.regex.Pattern;
+
+/**
+ * Cache shared by all the Ansible steps of a run, including the parallel branches of
+ * a Pipeline. The branches asking for a configuration at the same time share the same
+ * load, the playbooks are indexed by name once per configuration, and the parameter
+ * templates are compiled once.
+ *
+ * A load is only shared while it is in progress. The next load goes through the loader
+ * again, which only checks the fingerprints of the fragments when nothing changed. A
+ * configuration written by an earlier step of the build is therefore read fresh, and a
+ * failed load is tried again.
+ *
+ * The configurations found invalid by the pre-warm on checkout are checked again by the
+ * next load of the run, which fails if they are still invalid.
+ */
+final class AnsibleRunCache {
+	/**
+	 * The caches of the running builds
+	 */
+	private static final Map<Run<?, ?>, AnsibleRunCache> CACHES = new WeakHashMap<Run<?, ?>, AnsibleRunCache>();
+
+	/**
+	 * The configurations being loaded, by expanded path
+	 */
+	private final ConcurrentMap<String, FutureTask<Ansible>> configurations = new ConcurrentHashMap<String, FutureTask<Ansible>>();
+
+	/**
+	 * The pre-warms started on checkout, by expanded path
+	 */
+	private final ConcurrentMap<String, Future<?>> prewarms = new ConcurrentHashMap<String, Future<?>>();
+
+	/**
+	 * The configurations found invalid by the pre-warms, by expanded path
+	 */
+	private final ConcurrentMap<String, Check> invalid = new ConcurrentHashMap<String, Check>();
+
+	/**
+	 * The playbooks by name, by configuration
+	 */
+	private final ConcurrentMap<Ansible, Map<String, Playbook>> playbooks = new ConcurrentHashMap<Ansible, Map<String, Playbook>>();
+
+	/**
+	 * The compiled parameter templates, by parameter name
+	 */
+	private final ConcurrentMap<String, Pattern> templates = new ConcurrentHashMap<String, Pattern>();
+
+	private AnsibleRunCache() {}
+
+	/**
+	 * Retrieve the cache of a run
+	 *
+	 * @param run The run
+	 * @return The cache of the run
+	 */
+	static AnsibleRunCache of(Run<?, ?> run) {
+		synchronized (CACHES) {
+			AnsibleRunCache cache = CACHES.get(run);
+			if (cache == null) {
+				cache = new AnsibleRunCache();
+				CACHES.put(run, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Resolve a configuration file the way the Ansible steps, the pre-warm and the forms all
+	 * do: a relative path is relative to the workspace. The file is read on the controller.
+	 *
+	 * @param ws The workspace, can be null
+	 * @param configFilePath The configuration file, expanded
+	 * @return The path of the configuration file, unchanged when it is absolute or when there is no workspace
+	 */
+	static String resolve(FilePath ws, String configFilePath) {
+		if (ws == null || configFilePath == null || configFilePath.isEmpty() || new File(configFilePath).isAbsolute()) {
+			return configFilePath;
+		}
+		return new File(ws.getRemote(), configFilePath).getPath();
+	}
+
+	/**
+	 * Load a configuration, sharing the load in progress for the same file
+	 *
+	 * @param configFilePath The configuration file
+	 * @return The Ansible configuration
+	 * @throws IOException When the configuration cannot be loaded, or when a configuration found invalid on checkout still is
+	 * @throws InterruptedException When interrupted while another branch loads the configuration
+	 */
+	Ansible load(final String configFilePath) throws IOException, InterruptedException {
+		checkPrewarms();
+
+		FutureTask<Ansible> task = configurations.get(configFilePath);
+
+		if (task == null) {
+			FutureTask<Ansible> created = new FutureTask<Ansible>(new Callable<Ansible>() {
+				public Ansible call() throws IOException {
+					return AnsibleYamlLoader.load(configFilePath);
+				}
+			});
+
+			task = configurations.putIfAbsent(configFilePath, created);
+			if (task == null) {
+				task = created;
+				created.run();
+			}
+		}
+
+		try {
+			return task.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Unable to load the Ansible configuration file [" + configFilePath + "].", e.getCause());
+		}
+		finally {
+			// The next loads check the fingerprints again
+			configurations.remove(configFilePath, task);
+		}
+	}
+
+	/**
+	 * Wait for the pre-warms in progress, rather than parsing the same files twice, and
+	 * check again the configurations they found invalid
+	 *
+	 * @throws IOException When a configuration found invalid is still invalid
+	 * @throws InterruptedException When interrupted while waiting for the pre-warms
+	 */
+	private void checkPrewarms() throws IOException, InterruptedException {
+		for (Future<?> prewarm : prewarms.values()) {
+			try {
+				prewarm.get();
+			}
+			catch (ExecutionException e) {
+				// The errors are reported by the loads
+			}
+			catch (CancellationException e) {
+				// Nothing was warmed
+			}
+		}
+
+		for (Check check : invalid.values()) {
+			try {
+				validate(check);
+			}
+			catch (FileNotFoundException e) {
+				// Removed by a step, the steps using it report it
+			}
+			catch (AnsibleConfigurationException e) {
+				throw new AnsibleConfigurationException("The Ansible configuration file [" + check.configFilePath + "] checked after the checkout is not valid. " + e.getMessage(), e.getLine(), e.getColumn(), e);
+			}
+
+			// Fixed by a step of the build
+			invalid.remove(check.configFilePath, check);
+		}
+	}
+
+	/**
+	 * Validate a configuration the way the steps use it
+	 *
+	 * @param check The configuration to validate
+	 * @throws AnsibleConfigurationException When the configuration cannot be used
+	 * @throws IOException When the configuration cannot be read
+	 */
+	void validate(Check check) throws IOException {
+		Ansible ans = AnsibleYamlLoader.load(check.configFilePath);
+		if (check.runsPlaybook) {
+			playbook(ans, check.configFilePath, check.playbookName);
+		}
+	}
+
+	/**
+	 * Record a configuration found invalid by a pre-warm, the next load of the run checks it again
+	 *
+	 * @param check The configuration found invalid
+	 */
+	void invalid(Check check) {
+		invalid.put(check.configFilePath, check);
+	}
+
+	/**
+	 * Record the pre-warm of a configuration, the loads of the run wait for it
+	 *
+	 * @param configFilePath The configuration file
+	 * @param prewarm The pre-warm in progress
+	 * @return False if the configuration is already pre-warmed for the run
+	 */
+	boolean prewarming(String configFilePath, Future<?> prewarm) {
+		return prewarms.putIfAbsent(configFilePath, prewarm) == null;
+	}
+
+	/**
+	 * Find a playbook by name, checking the playbooks of the configuration
+	 *
+	 * @param ans The Ansible configuration
+	 * @param configFilePath The configuration file, for the errors
+	 * @param name The playbook name, null to only check the playbooks
+	 * @return The playbook, null if no name is given
+	 * @throws AnsibleConfigurationException When there is no playbook, when a playbook has no name, or when the playbook is not found or has no file
+	 */
+	Playbook playbook(Ansible ans, String configFilePath, String name) throws AnsibleConfigurationException {
+		Map<String, Playbook> index = playbooks.get(ans);
+
+		if (index == null) {
+			// Check there is at least one playbook
+			if (ans.getPlaybooks() == null || ans.getPlaybooks().isEmpty()) {
+				throw new AnsibleConfigurationException("No playbooks specified in the Ansible configuration file [" + configFilePath + "]. It must be at least one defined.");
+			}
+
+			index = new LinkedHashMap<String, Playbook>();
+			for (Playbook pb : ans.getPlaybooks()) {
+				// Be sure the configuration file is correct
+				if (pb.getName() == null || pb.getName().isEmpty()) {
+					throw new AnsibleConfigurationException("One playbook has no name in the Ansible configuration file [" + configFilePath + "]. Playbook name is mandatory.");
+				}
+
+				// The loader rejects the duplicates, the first playbook wins anyway
+				if (!index.containsKey(pb.getName())) {
+					index.put(pb.getName(), pb);
+				}
+			}
+			playbooks.putIfAbsent(ans, index);
+		}
+
+		if (name == null) {
+			return null;
+		}
+
+		Playbook playbook = index.get(name);
+
+		// No playbook found
+		if (playbook == null) {
+			throw new AnsibleConfigurationException("Unable to find the playbook [" + name + "] in the Ansible configuration file [" + configFilePath + "]. Available playbooks: " + Util.join(index.keySet(), ", "));
+		}
+
+		if (playbook.getFile() == null || playbook.getFile().isEmpty()) {
+			throw new AnsibleConfigurationException("There is no playbook file specified for playbook [" + name + "] in the Ansible configuration file [" + configFilePath + "]. The file is mandatory.");
+		}
+
+		return playbook;
+	}
+
+	/**
+	 * Retrieve the template matching <em>{{ name }}</em>
+	 *
+	 * @param name The parameter name
+	 * @return The compiled template
+	 */
+	Pattern template(String name) {
+		Pattern template = templates.get(name);
+		if (template == null) {
+			template = Pattern.compile("\\{\\{( *)" + name + " ( *)\\}\\}");
+			templates.putIfAbsent(name, template);
+		}
+		return template;
+	}
+
+	/**
+	 * A configuration used by a step of the run
+	 */
+	static final class Check {
+		private final String configFilePath;
+		private final boolean runsPlaybook;
+		private final String playbookName;
+
+		/**
+		 * Constructor
+		 *
+		 * @param configFilePath The expanded configuration file
+		 * @param runsPlaybook True if a playbook of the configuration is run, the playbooks are then checked
+		 * @param playbookName The playbook to run, null when not known yet
+		 */
+		Check(String configFilePath, boolean runsPlaybook, String playbookName) {
+			this.configFilePath = configFilePath;
+			this.runsPlaybook = runsPlaybook;
+			this.playbookName = playbookName;
+		}
+
+		String getConfigFilePath() {
+			return configFilePath;
+		}
+	}
+
+	/**
+	 * Forget the cache of the runs once completed
+	 */
+	@Extension
+	public static class CompletedRunListener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onCompleted(Run<?, ?> run, TaskListener listener) {
+			synchronized (CACHES) {
+				CACHES.remove(run);
+			}
+		}
+	}
+}
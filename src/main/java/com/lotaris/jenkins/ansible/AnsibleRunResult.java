@@ -0,0 +1,111 @@
+package com.lotaris.jenkins.ansible;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Result of an Ansible playbook run: the exit code, the play recap and the timings.
+ */
+public class AnsibleRunResult implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Exit code of the last command run
+	 */
+	private final int exitCode;
+
+	/**
+	 * Play recap of the last command run, by host
+	 */
+	private final Map<String, String> recap;
+
+	/**
+	 * Time to load the configuration and build the command
+	 */
+	private final long preparationMillis;
+
+	/**
+	 * Time to run the command, including the retries
+	 */
+	private final long durationMillis;
+
+	/**
+	 * Number of times the command has been run
+	 */
+	private final int attempts;
+
+	/**
+	 * Number of batches of a rolling update, 0 when the playbook ran on all its hosts at once
+	 */
+	private final int batches;
+
+	/**
+	 * Constructor
+	 *
+	 * @param exitCode Exit code of the last command run
+	 * @param recap Play recap of the last command run, by host
+	 * @param preparationMillis Time to load the configuration and build the command
+	 * @param durationMillis Time to run the command
+	 * @param attempts Number of times the command has been run
+	 * @param batches Number of batches of a rolling update, 0 when the playbook ran on all its hosts at once
+	 */
+	public AnsibleRunResult(int exitCode, Map<String, String> recap, long preparationMillis, long durationMillis, int attempts, int batches) {
+		this.exitCode = exitCode;
+		this.recap = new LinkedHashMap<String, String>(recap);
+		this.preparationMillis = preparationMillis;
+		this.durationMillis = durationMillis;
+		this.attempts = attempts;
+		this.batches = batches;
+	}
+
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	public Map<String, String> getRecap() {
+		return recap;
+	}
+
+	public long getPreparationMillis() {
+		return preparationMillis;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public int getBatches() {
+		return batches;
+	}
+
+	/**
+	 * @return The result as a map, to be used from a Pipeline script
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put("exitCode", exitCode);
+		map.put("recap", new HashMap<String, String>(recap));
+		map.put("preparationMillis", preparationMillis);
+		map.put("durationMillis", durationMillis);
+		map.put("attempts", attempts);
+		map.put("batches", batches);
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return
+			"Exit code: " + exitCode + ", " +
+			"Recap: " + recap + ", " +
+			"Preparation: " + preparationMillis + " ms, " +
+			"Duration: " + durationMillis + " ms, " +
+			"Attempts: " + attempts + ", " +
+			"Batches: " + batches;
+	}
+}
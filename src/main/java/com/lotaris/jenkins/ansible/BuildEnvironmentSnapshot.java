@@ -0,0 +1,143 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Environment;
+import hudson.model.EnvironmentContributingAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.scm.SCM;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Environment of a build computed once and shared by all the Ansible steps of the build.
+ * 
+ * Building the environment asks the node for its environment and walks the node properties
+ * and the environment contributors. The snapshot is reused as long as what the build itself
+ * contributes is unchanged: the environment contributing actions, the environments of the
+ * build wrappers, the SCM and the build variables are applied again on an empty environment
+ * at each call and compared to what they gave when the snapshot was taken. An action changed
+ * in place, replaced or added, or a new build wrapper environment, therefore takes a new
+ * snapshot. The expanded variables are evaluated once against the full environment, their
+ * action is compared by identity instead.
+ */
+public final class BuildEnvironmentSnapshot {
+	/**
+	 * The snapshots of the running builds
+	 */
+	private static final Map<AbstractBuild<?, ?>, BuildEnvironmentSnapshot> SNAPSHOTS = new WeakHashMap<AbstractBuild<?, ?>, BuildEnvironmentSnapshot>();
+
+	/**
+	 * The environment of the build
+	 */
+	private final EnvVars env;
+
+	/**
+	 * What the build contributed to the environment when the snapshot was taken
+	 */
+	private final List<Object> contributions;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param env The environment of the build
+	 * @param contributions What the build contributed to the environment
+	 */
+	private BuildEnvironmentSnapshot(EnvVars env, List<Object> contributions) {
+		this.env = env;
+		this.contributions = contributions;
+	}
+
+	/**
+	 * Retrieve the environment of a build
+	 * 
+	 * @param build The build
+	 * @param listener The build listener
+	 * @return A copy of the environment, free to be modified by the caller
+	 * @throws IOException When the environment cannot be computed
+	 * @throws InterruptedException When the build is interrupted
+	 */
+	public static EnvVars get(AbstractBuild<?, ?> build, TaskListener listener) throws IOException, InterruptedException {
+		List<Object> contributions = signature(build);
+
+		BuildEnvironmentSnapshot snapshot;
+		synchronized (SNAPSHOTS) {
+			snapshot = SNAPSHOTS.get(build);
+		}
+
+		if (snapshot == null || !snapshot.contributions.equals(contributions)) {
+			snapshot = new BuildEnvironmentSnapshot(build.getEnvironment(listener), contributions);
+
+			synchronized (SNAPSHOTS) {
+				SNAPSHOTS.put(build, snapshot);
+			}
+		}
+
+		return new EnvVars(snapshot.env);
+	}
+
+	/**
+	 * Apply what the build contributes to the environment on an empty environment. This
+	 * is done locally, without asking the node for anything.
+	 * 
+	 * @param build The build
+	 * @return The variables contributed by the build, the build variables and the actions of the expanded variables
+	 */
+	private static List<Object> signature(AbstractBuild<?, ?> build) {
+		List<Object> signature = new ArrayList<Object>();
+		EnvVars contributions = new EnvVars();
+		signature.add(contributions);
+		signature.add(build.getBuildVariables());
+
+		SCM scm = build.getProject().getScm();
+		if (scm != null) {
+			scm.buildEnvVars(build, contributions);
+		}
+
+		for (Environment environment : build.getEnvironments()) {
+			environment.buildEnvVars(contributions);
+		}
+
+		for (EnvironmentContributingAction action : build.getActions(EnvironmentContributingAction.class)) {
+			// Evaluating them here would keep values computed without the rest of the environment
+			if (action instanceof ExpandNewVariablesAction) {
+				signature.add(action);
+			}
+			else {
+				action.buildEnvVars(build, contributions);
+			}
+		}
+
+		return signature;
+	}
+
+	/**
+	 * Forget the environment of a build, to call when an action of this plugin changes the variables
+	 * 
+	 * @param build The build
+	 */
+	public static void invalidate(AbstractBuild<?, ?> build) {
+		synchronized (SNAPSHOTS) {
+			SNAPSHOTS.remove(build);
+		}
+	}
+
+	/**
+	 * Forget the environment of the builds once completed
+	 */
+	@Extension
+	public static class CompletedBuildListener extends RunListener<Run<?, ?>> {
+		@Override
+		public void onCompleted(Run<?, ?> run, TaskListener listener) {
+			if (run instanceof AbstractBuild) {
+				invalidate((AbstractBuild<?, ?>) run);
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.EnvVars;
+import hudson.model.AbstractBuild;
+import hudson.model.EnvironmentContributingAction;
+import java.util.Map;
+
+/**
+ * Action to enrich the EnvVars with variables defined in the build configuration.
+ * 
+ * The variables are evaluated the first time the environment is built, against the
+ * variables contributed so far, and are not evaluated again for the same build.
+ *
+ * The evaluation cannot be deferred further per variable: {@link EnvVars} only holds
+ * values, so every definition is computed when the first environment is built, even
+ * the ones no step reads. Only the order follows the references between definitions.
+ */
+public class ExpandNewVariablesAction implements EnvironmentContributingAction {
+	/**
+	 * The variable definitions
+	 */
+	private final VariableDefinitions definitions;
+
+	/**
+	 * The values of the variables, evaluated on first use
+	 */
+	private transient Map<String, String> values;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param definitions The variable definitions
+	 */
+	public ExpandNewVariablesAction(VariableDefinitions definitions) {
+		this.definitions = definitions;
+	}
+
+	public VariableDefinitions getDefinitions() {
+		return definitions;
+	}
+
+	public String getDisplayName() {
+		return "ExpandNewVariablesAction";
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return null;
+	}
+
+	public void buildEnvVars(AbstractBuild<?, ?> build, EnvVars env) {
+		// Nothing to do if no definitions
+		if (env == null || definitions == null) {
+			return;
+		}
+
+		env.putAll(getValues(env));
+	}
+
+	/**
+	 * @param env The variables contributed so far
+	 * @return The values of the variables
+	 */
+	private synchronized Map<String, String> getValues(EnvVars env) {
+		if (values == null) {
+			values = definitions.evaluate(env);
+		}
+		return values;
+	}
+}
@@ -9,8 +9,6 @@ import hudson.model.AbstractProject;
 import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
@@ -40,16 +38,19 @@ public class ExpandNewVariablesBuilder extends Builder {
 	@Override
 	public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
 		if (variables != null && !variables.isEmpty()) {
-			Map<String, String> expVariables = new HashMap<String, String>();
-			
-			for (String variable : variables.split("\n")) {
-				if (variable.contains("=")) {
-					String[] var = variable.split("=");
-					expVariables.put(var[0], var[1]);
+			try {
+				VariableDefinitions definitions = VariableDefinitions.parse(variables);
+
+				// The values are evaluated when the build environment is read
+				if (!definitions.isEmpty()) {
+					build.addAction(new ExpandNewVariablesAction(definitions));
+					BuildEnvironmentSnapshot.invalidate(build);
 				}
 			}
-			
-			build.addAction(new AnsibleExtendVariablesAction(expVariables));
+			catch (IllegalArgumentException e) {
+				listener.error(e.getMessage());
+				return false;
+			}
 		}
 		
 		return true;
@@ -79,6 +80,12 @@ public class ExpandNewVariablesBuilder extends Builder {
 			if (!value.isEmpty() && value.length() < 5) {
 				return FormValidation.warning("Isn't the variables too short?");
 			}
+			try {
+				VariableDefinitions.parse(value);
+			}
+			catch (IllegalArgumentException e) {
+				return FormValidation.error(e.getMessage());
+			}
 			return FormValidation.ok();
 		}		
 
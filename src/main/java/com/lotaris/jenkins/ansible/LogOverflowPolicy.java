@@ -0,0 +1,31 @@
+package com.lotaris.jenkins.ansible;
+
+/**
+ * What the log pump does with the output of the Ansible command when its buffer is full.
+ */
+public enum LogOverflowPolicy {
+	/**
+	 * Wait for the log to catch up. The output is complete, the command may be slowed down.
+	 */
+	BLOCK("Block the command"),
+
+	/**
+	 * Drop the lines that do not report the playbook progress and write how many were dropped.
+	 */
+	COALESCE("Coalesce the routine lines"),
+
+	/**
+	 * Write the output to a temporary file until the log catches up.
+	 */
+	SPILL("Spill to disk");
+
+	private final String displayName;
+
+	private LogOverflowPolicy(String displayName) {
+		this.displayName = displayName;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+}
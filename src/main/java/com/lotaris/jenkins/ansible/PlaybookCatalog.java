@@ -0,0 +1,268 @@
+package com.lotaris.jenkins.ansible;
+
+import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.Playbook;
+import com.lotaris.jenkins.ansible.yaml.AnsibleYamlLoader;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.AbstractProject;
+import hudson.model.Computer;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import jenkins.model.Jenkins;
+
+/**
+ * Catalog of the playbook names of the Ansible configuration files, for the forms.
+ *
+ * The configurations are parsed in the background and the catalog returns what is
+ * known at the time of the request, so rendering a form never waits for a YAML parse.
+ * A configuration is parsed again when its root file changed, or after a short delay
+ * to see the changes of the included fragments, which are fingerprinted by the loader.
+ *
+ * The configuration files are resolved as the builds resolve them, relative to the
+ * workspace of the job. Only the files inside the local workspace of the job are read,
+ * except for the administrators, and only the most recently used ones are kept. The
+ * errors only tell the place and the kind of the problem, never the content of the file.
+ */
+final class PlaybookCatalog {
+	/**
+	 * Minimal delay between two refreshes of an unchanged configuration, in milliseconds
+	 */
+	private static final long REFRESH_DELAY = Long.getLong(PlaybookCatalog.class.getName() + ".refreshDelay", 10000);
+
+	/**
+	 * Number of configurations kept in the catalog
+	 */
+	private static final int MAX_ENTRIES = Integer.getInteger(PlaybookCatalog.class.getName() + ".maxEntries", 200);
+
+	/**
+	 * The catalog entries, by configuration path, the least recently used first
+	 */
+	private static final Map<String, Entry> ENTRIES = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private PlaybookCatalog() {}
+
+	/**
+	 * Resolve the configuration file of a job the way it is resolved at build time, relative
+	 * to the workspace. Only the workspace variables are known outside of a build.
+	 *
+	 * @param project The job, can be null
+	 * @param configurationFile The configuration file as typed
+	 * @return The canonical path of the configuration file, null if it cannot be known outside of a build
+	 */
+	static String resolve(AbstractProject<?, ?> project, String configurationFile) {
+		if (configurationFile == null || configurationFile.isEmpty()) {
+			return null;
+		}
+
+		FilePath ws = project != null ? project.getSomeWorkspace() : null;
+
+		String path = configurationFile;
+		if (ws != null) {
+			EnvVars env = new EnvVars();
+			env.put("WORKSPACE", ws.getRemote());
+			path = env.expand(path);
+		}
+
+		// Variables only known at build time
+		if (path.contains("$")) {
+			return null;
+		}
+
+		// Relative to a workspace not created yet
+		if (ws == null && !new File(path).isAbsolute()) {
+			return null;
+		}
+
+		try {
+			return new File(AnsibleRunCache.resolve(ws, path)).getCanonicalPath();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tell if a configuration file can be read for the forms of a job. The files inside the
+	 * local workspace of the job can, the other ones only by the administrators.
+	 *
+	 * @param project The job
+	 * @param path The canonical path of the configuration file
+	 * @return True if the file can be read for the current user
+	 */
+	static boolean isReadable(AbstractProject<?, ?> project, String path) {
+		if (Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER)) {
+			return true;
+		}
+
+		FilePath ws = project.getSomeWorkspace();
+		if (ws == null || ws.isRemote()) {
+			return false;
+		}
+
+		try {
+			return path.startsWith(new File(ws.getRemote()).getCanonicalPath() + File.separator);
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Retrieve the catalog entry of a configuration, scheduling a refresh when needed
+	 *
+	 * @param path The configuration path
+	 * @return The entry known now, null if the configuration does not exist or has not been parsed yet
+	 */
+	static Entry get(String path) {
+		File file = new File(path);
+
+		// Nothing to keep for the paths typed on the way to an existing file
+		if (!file.isFile()) {
+			synchronized (ENTRIES) {
+				ENTRIES.remove(path);
+			}
+			return null;
+		}
+
+		long lastModified = file.lastModified();
+		long now = System.currentTimeMillis();
+
+		Entry entry;
+		boolean refresh = false;
+
+		synchronized (ENTRIES) {
+			entry = ENTRIES.get(path);
+
+			if (entry == null) {
+				entry = new Entry();
+				ENTRIES.put(path, entry);
+			}
+
+			if (!entry.refreshing && (entry.lastModified != lastModified || now - entry.refreshed > REFRESH_DELAY)) {
+				entry.refreshing = true;
+				refresh = true;
+			}
+		}
+
+		if (refresh) {
+			schedule(path, entry, lastModified);
+		}
+
+		return entry.isLoaded() ? entry : null;
+	}
+
+	/**
+	 * Refresh an entry in the background
+	 *
+	 * @param path The configuration path
+	 * @param entry The entry to refresh
+	 * @param lastModified The date of the root file
+	 */
+	private static void schedule(final String path, final Entry entry, final long lastModified) {
+		Computer.threadPoolForRemoting.submit(new Runnable() {
+			public void run() {
+				List<String> names = null;
+				String error = null;
+
+				try {
+					names = names(AnsibleYamlLoader.load(path));
+				}
+				catch (Exception e) {
+					error = describe(e);
+				}
+
+				synchronized (ENTRIES) {
+					entry.names = names;
+					entry.error = error;
+					entry.lastModified = lastModified;
+					entry.refreshed = System.currentTimeMillis();
+					entry.refreshing = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Describe an error without the content of the file: the snippet of the YAML errors
+	 * and the causes are left out.
+	 *
+	 * @param e The error met while reading the configuration
+	 * @return The first line of the error message
+	 */
+	private static String describe(Exception e) {
+		String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+
+		int eol = message.indexOf('\n');
+		return eol >= 0 ? message.substring(0, eol) : message;
+	}
+
+	/**
+	 * @param ans The Ansible configuration
+	 * @return The sorted playbook names
+	 */
+	private static List<String> names(Ansible ans) {
+		if (ans.getPlaybooks() == null) {
+			return Collections.emptyList();
+		}
+
+		TreeSet<String> names = new TreeSet<String>();
+		for (Playbook playbook : ans.getPlaybooks()) {
+			if (playbook.getName() != null && !playbook.getName().isEmpty()) {
+				names.add(playbook.getName());
+			}
+		}
+		return new ArrayList<String>(names);
+	}
+
+	/**
+	 * Playbook names of a configuration, or the error met while reading it
+	 */
+	static final class Entry {
+		private List<String> names;
+		private String error;
+		private long lastModified = -1;
+		private long refreshed;
+		private boolean refreshing;
+
+		/**
+		 * @return The playbook names, null if the configuration is not valid
+		 */
+		List<String> getNames() {
+			synchronized (ENTRIES) {
+				return names;
+			}
+		}
+
+		/**
+		 * @return The error met while reading the configuration, null if it is valid
+		 */
+		String getError() {
+			synchronized (ENTRIES) {
+				return error;
+			}
+		}
+
+		/**
+		 * @return True if the configuration has been read at least once
+		 */
+		boolean isLoaded() {
+			synchronized (ENTRIES) {
+				return names != null || error != null;
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.lotaris.jenkins.ansible;
+
+import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.LayeredVariables;
+import com.lotaris.jenkins.ansible.model.Playbook;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Layered resolution of the variables and the properties of a playbook: the global ones,
+ * then the playbook ones, then the build parameters.
+ * 
+ * The global and playbook layers are built once per loaded configuration and shared by
+ * all the builds and all the playbooks, only the build layer is built for each build.
+ */
+final class PlaybookVariables {
+	/**
+	 * The global variables layer, by configuration
+	 */
+	private static final Map<Ansible, LayeredVariables> GLOBAL_VARS = new WeakHashMap<Ansible, LayeredVariables>();
+
+	/**
+	 * The global properties layer, by configuration
+	 */
+	private static final Map<Ansible, LayeredVariables> GLOBAL_PROPERTIES = new WeakHashMap<Ansible, LayeredVariables>();
+
+	/**
+	 * The playbook variables layers, by playbook
+	 */
+	private static final Map<Playbook, LayeredVariables[]> PLAYBOOK_VARS = new WeakHashMap<Playbook, LayeredVariables[]>();
+
+	/**
+	 * The playbook properties layers, by playbook
+	 */
+	private static final Map<Playbook, LayeredVariables[]> PLAYBOOK_PROPERTIES = new WeakHashMap<Playbook, LayeredVariables[]>();
+
+	private PlaybookVariables() {}
+
+	/**
+	 * Resolve the variables of a playbook
+	 * 
+	 * @param ans The Ansible configuration
+	 * @param playbook The playbook
+	 * @param buildVariables The build parameters, overriding the variables of the same name
+	 * @return The variables resolved
+	 */
+	static LayeredVariables vars(Ansible ans, Playbook playbook, Map<String, String> buildVariables) {
+		LayeredVariables global = layer(GLOBAL_VARS, ans, ans.getVars());
+		return layer(PLAYBOOK_VARS, playbook, global, playbook.getVars()).override("build", buildVariables);
+	}
+
+	/**
+	 * Resolve the properties of a playbook
+	 * 
+	 * @param ans The Ansible configuration
+	 * @param playbook The playbook
+	 * @param buildVariables The build parameters, overriding the properties of the same name
+	 * @return The properties resolved
+	 */
+	static LayeredVariables properties(Ansible ans, Playbook playbook, Map<String, String> buildVariables) {
+		LayeredVariables global = layer(GLOBAL_PROPERTIES, ans, ans.getProperties());
+		return layer(PLAYBOOK_PROPERTIES, playbook, global, playbook.getProperties()).override("build", buildVariables);
+	}
+
+	/**
+	 * Retrieve or build the global layer of a configuration
+	 * 
+	 * @param cache The cache of layers
+	 * @param ans The Ansible configuration
+	 * @param values The global values
+	 * @return The global layer
+	 */
+	private static LayeredVariables layer(Map<Ansible, LayeredVariables> cache, Ansible ans, Map<String, String> values) {
+		synchronized (cache) {
+			LayeredVariables layer = cache.get(ans);
+			if (layer == null) {
+				layer = LayeredVariables.EMPTY.with("global", values);
+				cache.put(ans, layer);
+			}
+			return layer;
+		}
+	}
+
+	/**
+	 * Retrieve or build the playbook layer on top of a global layer. A playbook can be
+	 * shared by several configurations when it comes from an included fragment, the
+	 * layer is built again when the global layer below is not the same.
+	 * 
+	 * @param cache The cache of layers with the global layer they were built on
+	 * @param playbook The playbook
+	 * @param global The global layer
+	 * @param values The playbook values
+	 * @return The playbook layer
+	 */
+	private static LayeredVariables layer(Map<Playbook, LayeredVariables[]> cache, Playbook playbook, LayeredVariables global, Map<String, String> values) {
+		synchronized (cache) {
+			LayeredVariables[] layers = cache.get(playbook);
+			if (layers == null || layers[0] != global) {
+				layers = new LayeredVariables[] { global, global.with("playbook [" + playbook.getName() + "]", values) };
+				cache.put(playbook, layers);
+			}
+			return layers[1];
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.Proc;
+import hudson.remoting.VirtualChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Sample the resources used by the process tree of an Ansible command and kill the
+ * tree when one of the caps is exceeded.
+ *
+ * The processes of the tree are found through an environment variable inherited
+ * by all the children of the command.
+ */
+class ProcessTreeMonitor implements Runnable {
+	private static final Logger LOGGER = Logger.getLogger(ProcessTreeMonitor.class.getName());
+
+	/**
+	 * The environment variable marking the process tree
+	 */
+	static final String MARKER = "JENKINS_ANSIBLE_RUN_ID";
+
+	/**
+	 * Sampling period, in seconds
+	 */
+	private static final long PERIOD = Long.getLong(ProcessTreeMonitor.class.getName() + ".period", 5);
+
+	/**
+	 * Clock ticks per second of the times in /proc. This is USER_HZ of the node kernel,
+	 * 100 on all the mainstream Linux architectures, which cannot be read from /proc.
+	 */
+	private static final long USER_HZ = Long.getLong(ProcessTreeMonitor.class.getName() + ".userHz", 100);
+
+	/**
+	 * The channel to the node where the command runs
+	 */
+	private final VirtualChannel channel;
+
+	/**
+	 * The value of the marker for this command
+	 */
+	private final String runId = UUID.randomUUID().toString();
+
+	/**
+	 * Wall time cap in milliseconds, 0 for no cap
+	 */
+	private final long maxWallTimeMillis;
+
+	/**
+	 * Resident set size cap in kilobytes, 0 for no cap
+	 */
+	private final long maxRssKilobytes;
+
+	/**
+	 * Highest I/O bytes seen per pid, the exited processes keep their last value
+	 */
+	private final Map<Long, Long> ioBytes = new HashMap<Long, Long>();
+
+	private long startMillis;
+	private long endMillis;
+	private long cpuTicks;
+	private long peakRssKilobytes;
+	private int samples;
+	private String killReason;
+
+	private Proc proc;
+	private ScheduledFuture<?> future;
+	private ScheduledFuture<?> deadline;
+
+	/**
+	 * Constructor
+	 *
+	 * @param channel The channel to the node where the command runs, null to skip the sampling
+	 * @param maxWallTimeMillis Wall time cap in milliseconds, 0 for no cap
+	 * @param maxRssKilobytes Resident set size cap in kilobytes, 0 for no cap
+	 */
+	ProcessTreeMonitor(VirtualChannel channel, long maxWallTimeMillis, long maxRssKilobytes) {
+		this.channel = channel;
+		this.maxWallTimeMillis = maxWallTimeMillis;
+		this.maxRssKilobytes = maxRssKilobytes;
+	}
+
+	/**
+	 * @return The environment entry to give to the command
+	 */
+	String getMarker() {
+		return MARKER + "=" + runId;
+	}
+
+	/**
+	 * Start the monitoring of a process tree. The resident set size cap is checked at
+	 * each sample, the wall time cap is enforced at the exact time.
+	 *
+	 * @param proc The root process of the tree
+	 */
+	synchronized void start(Proc proc) {
+		this.proc = proc;
+		this.startMillis = System.currentTimeMillis();
+		this.future = Timer.get().scheduleWithFixedDelay(this, 0, PERIOD, TimeUnit.SECONDS);
+
+		if (maxWallTimeMillis > 0) {
+			this.deadline = Timer.get().schedule(new Runnable() {
+				public void run() {
+					String reason;
+					synchronized (ProcessTreeMonitor.this) {
+						reason = checkCaps();
+					}
+					if (reason != null) {
+						kill(reason);
+					}
+				}
+			}, maxWallTimeMillis + 1, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stop the monitoring once the process tree has finished
+	 */
+	void stop() {
+		ScheduledFuture<?> f;
+		ScheduledFuture<?> d;
+		synchronized (this) {
+			f = future;
+			d = deadline;
+			endMillis = System.currentTimeMillis();
+		}
+
+		if (f != null) {
+			f.cancel(false);
+		}
+		if (d != null) {
+			d.cancel(false);
+		}
+	}
+
+	/**
+	 * @return True if a process tree has been monitored
+	 */
+	synchronized boolean isStarted() {
+		return proc != null;
+	}
+
+	/**
+	 * @return The resources used by the process tree
+	 */
+	synchronized AnsibleResourceUsageAction getUsage() {
+		return new AnsibleResourceUsageAction(
+			endMillis - startMillis,
+			cpuTicks * 1000 / USER_HZ,
+			peakRssKilobytes,
+			ioBytes.size(),
+			sum(ioBytes),
+			samples,
+			killReason
+		);
+	}
+
+	public void run() {
+		List<long[]> sample = null;
+
+		if (channel != null) {
+			try {
+				sample = channel.call(new ProcessTreeSampler(MARKER, runId));
+			}
+			catch (Exception e) {
+				LOGGER.log(Level.FINE, "Unable to sample the Ansible process tree.", e);
+			}
+		}
+
+		String reason;
+		synchronized (this) {
+			if (sample != null && !sample.isEmpty()) {
+				record(sample);
+			}
+			reason = checkCaps();
+		}
+
+		if (reason != null) {
+			kill(reason);
+		}
+	}
+
+	/**
+	 * Aggregate a sample of the process tree
+	 *
+	 * @param sample The sample, one entry per process
+	 */
+	private void record(List<long[]> sample) {
+		long ticks = 0;
+		long rss = 0;
+
+		for (long[] process : sample) {
+			ticks += process[1];
+			rss += process[2];
+
+			Long io = ioBytes.get(process[0]);
+			if (io == null || io < process[3]) {
+				ioBytes.put(process[0], process[3]);
+			}
+		}
+
+		cpuTicks = Math.max(cpuTicks, ticks);
+		peakRssKilobytes = Math.max(peakRssKilobytes, rss);
+		samples++;
+	}
+
+	/**
+	 * @return The reason to kill the process tree, null if the caps are respected
+	 */
+	private String checkCaps() {
+		if (killReason != null) {
+			return null;
+		}
+
+		long wallTime = System.currentTimeMillis() - startMillis;
+		if (maxWallTimeMillis > 0 && wallTime > maxWallTimeMillis) {
+			killReason = "Wall time of " + wallTime / 1000 + " seconds exceeded the cap of " + maxWallTimeMillis / 1000 + " seconds.";
+		}
+		else if (maxRssKilobytes > 0 && peakRssKilobytes > maxRssKilobytes) {
+			killReason = "Resident set size of " + peakRssKilobytes / 1024 + " MB exceeded the cap of " + maxRssKilobytes / 1024 + " MB.";
+		}
+
+		return killReason;
+	}
+
+	/**
+	 * Kill the whole process tree
+	 *
+	 * @param reason The reason of the kill
+	 */
+	private void kill(String reason) {
+		LOGGER.log(Level.INFO, "Killing the Ansible process tree {0}: {1}", new Object[] { runId, reason });
+
+		try {
+			proc.kill();
+		}
+		catch (Exception e) {
+			LOGGER.log(Level.WARNING, "Unable to kill the Ansible process tree " + runId + ".", e);
+		}
+	}
+
+	/**
+	 * @param values The values to sum
+	 * @return The sum of the values
+	 */
+	private static long sum(Map<Long, Long> values) {
+		long sum = 0;
+		for (Long value : values.values()) {
+			sum += value;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,189 @@
+package com.lotaris.jenkins.ansible;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Read from <em>/proc</em> the resource usage of the processes marked with an
+ * environment variable. Runs on the node where the Ansible command is started.
+ *
+ * Each sample is a <em>long[]</em> with the pid, the CPU time in clock ticks (own
+ * and reaped children), the resident set size in kilobytes and the bytes read
+ * and written (including sockets).
+ *
+ * Nothing is sampled when <em>/proc</em> is not available.
+ */
+class ProcessTreeSampler extends MasterToSlaveCallable<List<long[]>, IOException> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The proc file system
+	 */
+	private static final File PROC = new File("/proc");
+
+	/**
+	 * The environment entry marking the processes to sample
+	 */
+	private final String marker;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name The name of the environment variable
+	 * @param value The value of the environment variable
+	 */
+	ProcessTreeSampler(String name, String value) {
+		this.marker = name + "=" + value;
+	}
+
+	public List<long[]> call() throws IOException {
+		List<long[]> samples = new ArrayList<long[]>();
+
+		File[] entries = PROC.listFiles();
+		if (entries == null) {
+			return samples;
+		}
+
+		for (File entry : entries) {
+			if (!isPid(entry.getName())) {
+				continue;
+			}
+
+			// Processes can exit at any time, a process that cannot be read is skipped
+			try {
+				if (isMarked(entry)) {
+					samples.add(new long[] {
+						Long.parseLong(entry.getName()),
+						readCpuTicks(entry),
+						readStatusValue(entry, "VmRSS:"),
+						readIoValue(entry, "rchar:") + readIoValue(entry, "wchar:")
+					});
+				}
+			}
+			catch (IOException ioe) {}
+			catch (RuntimeException re) {}
+		}
+
+		return samples;
+	}
+
+	/**
+	 * @param name The file name
+	 * @return True if the name is a pid
+	 */
+	private static boolean isPid(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i))) {
+				return false;
+			}
+		}
+		return name.length() > 0;
+	}
+
+	/**
+	 * @param process The process directory
+	 * @return True if the process environment contains the marker
+	 * @throws IOException When the environment cannot be read
+	 */
+	private boolean isMarked(File process) throws IOException {
+		String environment = new String(readFully(new File(process, "environ")), "UTF-8");
+		for (String variable : environment.split("\u0000")) {
+			if (variable.equals(marker)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read the user and system times of a process and of its reaped children. The times
+	 * of a process are moved to its parent when reaped, summing the live processes of the
+	 * tree therefore never counts a process twice.
+	 *
+	 * @param process The process directory
+	 * @return The CPU time in clock ticks
+	 * @throws IOException When the stat file cannot be read
+	 */
+	private static long readCpuTicks(File process) throws IOException {
+		String stat = new String(readFully(new File(process, "stat")), "UTF-8");
+
+		// The command name can contain spaces, the fields are after the closing parenthesis
+		String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+
+		// utime, stime, cutime and cstime are the fields 14 to 17 of the stat file
+		return Long.parseLong(fields[11]) + Long.parseLong(fields[12]) + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+	}
+
+	/**
+	 * @param process The process directory
+	 * @param key The status key
+	 * @return The value in kilobytes, 0 when not present
+	 * @throws IOException When the status file cannot be read
+	 */
+	private static long readStatusValue(File process, String key) throws IOException {
+		return readValue(new File(process, "status"), key);
+	}
+
+	/**
+	 * @param process The process directory
+	 * @param key The io key
+	 * @return The number of bytes, 0 when not present
+	 * @throws IOException When the io file cannot be read
+	 */
+	private static long readIoValue(File process, String key) throws IOException {
+		return readValue(new File(process, "io"), key);
+	}
+
+	/**
+	 * Read the first number following a key in a <em>key: value</em> file
+	 *
+	 * @param file The file to read
+	 * @param key The key
+	 * @return The value, 0 when the key is not present
+	 * @throws IOException When the file cannot be read
+	 */
+	private static long readValue(File file, String key) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(key)) {
+					return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+				}
+			}
+			return 0;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param file The file to read
+	 * @return The content of the file
+	 * @throws IOException When the file cannot be read
+	 */
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+}
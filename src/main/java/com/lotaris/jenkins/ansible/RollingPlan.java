@@ -0,0 +1,190 @@
+package com.lotaris.jenkins.ansible;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Batches of a rolling run of a playbook over a host list.
+ *
+ * A canary batch runs first and must not fail. The next batches double while they
+ * succeed and the time spent per host stays close to the best one seen, hold their size
+ * when it degrades, and shrink in proportion when it degrades past the saturation. A
+ * batch whose hosts fail at a higher rate than the failure budget shrinks by its failure
+ * rate, failures within the budget rate hold the size. The rollout is aborted once more
+ * hosts failed than the failure budget allows.
+ */
+final class RollingPlan {
+	/**
+	 * Time per host over the best one seen above which the batches stop growing
+	 */
+	private static final double GROWTH = 1.1;
+
+	/**
+	 * Time per host over the best one seen above which the batches shrink
+	 */
+	private static final double SATURATION = 1.5;
+
+	private final List<String> hosts;
+	private final int maxBatchSize;
+	private final int failureBudget;
+
+	/**
+	 * Index of the first host not run yet
+	 */
+	private int next;
+
+	/**
+	 * Size of the next batch
+	 */
+	private int batchSize;
+
+	/**
+	 * Number of batches run
+	 */
+	private int batches;
+
+	/**
+	 * Number of hosts that failed so far
+	 */
+	private int failedHosts;
+
+	/**
+	 * Best time per host seen, in milliseconds
+	 */
+	private long bestMillisPerHost = -1;
+
+	/**
+	 * Why the rollout was aborted, null while it goes on
+	 */
+	private String abortReason;
+
+	/**
+	 * Constructor
+	 *
+	 * @param hosts The hosts to run, in order
+	 * @param canarySize Number of hosts of the canary batch
+	 * @param maxBatchSize Maximum number of hosts of a batch, 0 for no maximum
+	 * @param failureBudgetPercent Share of the hosts allowed to fail before the rollout is aborted
+	 */
+	RollingPlan(List<String> hosts, int canarySize, int maxBatchSize, int failureBudgetPercent) {
+		this.hosts = new ArrayList<String>(hosts);
+		this.maxBatchSize = maxBatchSize > 0 ? maxBatchSize : hosts.size();
+		this.failureBudget = hosts.size() * Math.max(0, failureBudgetPercent) / 100;
+		this.batchSize = Math.max(1, Math.min(canarySize, this.maxBatchSize));
+	}
+
+	/**
+	 * @return True while there are hosts to run and the rollout has not been aborted
+	 */
+	boolean hasNext() {
+		return abortReason == null && next < hosts.size();
+	}
+
+	/**
+	 * @return The hosts of the next batch
+	 */
+	List<String> next() {
+		int end = Math.min(hosts.size(), next + batchSize);
+		List<String> batch = Collections.unmodifiableList(hosts.subList(next, end));
+		next = end;
+		return batch;
+	}
+
+	/**
+	 * Record the outcome of a batch and size the next one
+	 *
+	 * @param size Number of hosts of the batch
+	 * @param failed Number of hosts of the batch that failed
+	 * @param durationMillis Time the batch took
+	 */
+	void record(int size, int failed, long durationMillis) {
+		boolean canary = batches == 0;
+		batches++;
+		failedHosts += failed;
+
+		if (canary && failed > 0) {
+			abortReason = "The canary batch failed on " + failed + " host(s).";
+			return;
+		}
+
+		if (failedHosts > failureBudget) {
+			abortReason = failedHosts + " host(s) failed, more than the failure budget of " + failureBudget + " host(s).";
+			return;
+		}
+
+		long millisPerHost = durationMillis / Math.max(1, size);
+		double failureRate = (double) failed / Math.max(1, size);
+		double budgetRate = (double) failureBudget / Math.max(1, hosts.size());
+
+		if (failed > 0 && failureRate > budgetRate) {
+			// Failing faster than the budget allows, fewer hosts at risk in the next batch
+			batchSize = Math.max(1, (int) (size * (1 - failureRate)));
+		}
+		else if (failed > 0) {
+			batchSize = size;
+		}
+		else if (bestMillisPerHost >= 0 && millisPerHost > bestMillisPerHost * SATURATION) {
+			// Back to the size giving the best time per host
+			batchSize = Math.max(1, (int) (size * bestMillisPerHost / millisPerHost));
+		}
+		else if (bestMillisPerHost >= 0 && millisPerHost > bestMillisPerHost * GROWTH) {
+			batchSize = size;
+		}
+		else {
+			batchSize = Math.min(maxBatchSize, size * 2);
+		}
+
+		if (bestMillisPerHost < 0 || millisPerHost < bestMillisPerHost) {
+			bestMillisPerHost = millisPerHost;
+		}
+	}
+
+	/**
+	 * @return The size of the next batch
+	 */
+	int getBatchSize() {
+		return Math.min(batchSize, hosts.size() - next);
+	}
+
+	int getBatches() {
+		return batches;
+	}
+
+	int getFailedHosts() {
+		return failedHosts;
+	}
+
+	int getFailureBudget() {
+		return failureBudget;
+	}
+
+	/**
+	 * @return The hosts not run yet
+	 */
+	int getRemainingHosts() {
+		return hosts.size() - next;
+	}
+
+	String getAbortReason() {
+		return abortReason;
+	}
+
+	/**
+	 * Parse a coma separated host list
+	 *
+	 * @param hosts The host list, can be null
+	 * @return The host names
+	 */
+	static List<String> parseHosts(String hosts) {
+		List<String> result = new ArrayList<String>();
+		if (hosts != null) {
+			for (String host : hosts.split(",")) {
+				if (!host.trim().isEmpty()) {
+					result.add(host.trim());
+				}
+			}
+		}
+		return result;
+	}
+}
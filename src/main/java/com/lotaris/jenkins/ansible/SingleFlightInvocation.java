@@ -0,0 +1,259 @@
+package com.lotaris.jenkins.ansible;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ansible invocation shared between identical concurrent builds.
+ *
+ * The first build registering a key becomes the leader and runs the command. The
+ * output of the leader is spooled to a temporary file so the followers can replay it
+ * live and share the exit code instead of starting their own process. The file is
+ * deleted once the leader and all its followers are done.
+ *
+ * When the spool file cannot be written, the invocation is broken: the leader goes on
+ * with its own output only, the followers run the command on their own and the key is
+ * released for the next invocations.
+ */
+class SingleFlightInvocation extends OutputStream {
+	private static final Logger LOGGER = Logger.getLogger(SingleFlightInvocation.class.getName());
+
+	/**
+	 * Invocations currently running, by key
+	 */
+	private static final ConcurrentMap<String, SingleFlightInvocation> IN_FLIGHT = new ConcurrentHashMap<String, SingleFlightInvocation>();
+
+	/**
+	 * The key of the fully resolved invocation
+	 */
+	private final String key;
+
+	/**
+	 * File where the output of the leader is spooled, created on the first write
+	 */
+	private File spool;
+
+	/**
+	 * Stream writing the spool file
+	 */
+	private OutputStream spoolOut;
+
+	/**
+	 * Number of bytes written in the spool file
+	 */
+	private long size;
+
+	/**
+	 * Number of followers replaying the output
+	 */
+	private int followers;
+
+	/**
+	 * Whether the leader has finished
+	 */
+	private boolean done;
+
+	/**
+	 * Whether the spool file could not be written, the output is then no longer shared
+	 */
+	private boolean broken;
+
+	/**
+	 * Exit code of the leader, null if the leader was not able to run the command
+	 */
+	private Integer exitCode;
+
+	/**
+	 * Constructor
+	 *
+	 * @param key The key of the fully resolved invocation
+	 */
+	SingleFlightInvocation(String key) {
+		this.key = key;
+	}
+
+	/**
+	 * Register an invocation as the leader for its key, or follow the invocation already in flight
+	 *
+	 * @param invocation The invocation to register
+	 * @return The invocation already in flight for the same key, now followed, null if the given one is now the leader
+	 */
+	static SingleFlightInvocation register(SingleFlightInvocation invocation) {
+		while (true) {
+			SingleFlightInvocation leader = IN_FLIGHT.putIfAbsent(invocation.key, invocation);
+			if (leader == null || leader.addFollower()) {
+				return leader;
+			}
+
+			// The leader finished in the meantime and has released the key
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/**
+	 * Spool the output of the leader. The errors of the spool file are not thrown, the leader
+	 * must keep its own output whatever happens to the followers.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) {
+		boolean failed = false;
+
+		synchronized (this) {
+			if (broken) {
+				return;
+			}
+
+			try {
+				if (spoolOut == null) {
+					spool = File.createTempFile("ansible-invocation", ".log");
+					spoolOut = new FileOutputStream(spool);
+				}
+
+				spoolOut.write(b, off, len);
+				size += len;
+			}
+			catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Unable to spool the output of the Ansible invocation, the identical invocations run on their own", e);
+				broken = true;
+				failed = true;
+				closeSpool();
+			}
+
+			notifyAll();
+		}
+
+		// No new follower for this invocation, the next identical ones run on their own
+		if (failed) {
+			IN_FLIGHT.remove(key, this);
+		}
+	}
+
+	/**
+	 * Mark the leader as finished and release the key for the next invocations
+	 *
+	 * @param exitCode The exit code of the command, null if the command was not run
+	 */
+	void complete(Integer exitCode) {
+		IN_FLIGHT.remove(key, this);
+
+		synchronized (this) {
+			this.exitCode = exitCode;
+			done = true;
+			notifyAll();
+
+			closeSpool();
+		}
+	}
+
+	/**
+	 * Replay the leader output from the beginning and follow it until the leader finishes
+	 *
+	 * @param out The stream where to copy the output
+	 * @return The exit code of the leader, null if the leader was not able to run the command or to share its output
+	 * @throws IOException When the output cannot be written
+	 * @throws InterruptedException When the follower is interrupted while waiting
+	 */
+	Integer follow(OutputStream out) throws IOException, InterruptedException {
+		InputStream in = null;
+		long position = 0;
+		byte[] chunk = new byte[8192];
+
+		try {
+			while (true) {
+				long available;
+				boolean finished;
+
+				synchronized (this) {
+					while (position == size && !done && !broken) {
+						wait();
+					}
+
+					if (broken) {
+						return null;
+					}
+
+					available = size - position;
+					finished = done;
+
+					if (in == null && available > 0) {
+						in = new FileInputStream(spool);
+					}
+				}
+
+				// Read and write outside of the lock to never slow down the leader
+				while (available > 0) {
+					int len = in.read(chunk, 0, (int) Math.min(chunk.length, available));
+					if (len < 0) {
+						throw new IOException("The output of the identical Ansible invocation is truncated.");
+					}
+					out.write(chunk, 0, len);
+					position += len;
+					available -= len;
+				}
+
+				if (finished) {
+					out.flush();
+					return exitCode;
+				}
+			}
+		}
+		finally {
+			if (in != null) {
+				in.close();
+			}
+
+			synchronized (this) {
+				followers--;
+				closeSpool();
+			}
+		}
+	}
+
+	/**
+	 * Add a follower to a running leader
+	 *
+	 * @return False if the leader has already finished
+	 */
+	private synchronized boolean addFollower() {
+		if (done || broken) {
+			return false;
+		}
+		followers++;
+		return true;
+	}
+
+	/**
+	 * Delete the spool file once the leader and all the followers are done, or once it is broken
+	 */
+	private void closeSpool() {
+		if ((!done && !broken) || followers > 0 || spool == null) {
+			return;
+		}
+
+		try {
+			if (spoolOut != null) {
+				spoolOut.close();
+			}
+		}
+		catch (IOException e) {
+			LOGGER.log(Level.FINE, "Unable to close the spool file " + spool, e);
+		}
+
+		if (!spool.delete()) {
+			LOGGER.fine("Unable to delete the spool file " + spool);
+		}
+		spool = null;
+	}
+}
@@ -0,0 +1,199 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.Util;
+import hudson.util.VariableResolver;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Variable definitions written as <em>name=value</em> lines. The values can reference
+ * the other definitions and the build variables with <em>$name</em> or <em>${name}</em>.
+ *
+ * The definitions are parsed into a dependency graph where cycles are rejected. A
+ * definition referencing itself reads the build variable of the same name, which
+ * allows definitions such as <em>PATH=$PATH:/opt/ansible/bin</em>.
+ */
+public class VariableDefinitions {
+	/**
+	 * Variable reference, same syntax as {@link Util#replaceMacro(String, VariableResolver)}
+	 */
+	private static final Pattern REFERENCE = Pattern.compile("\\$([A-Za-z0-9_]+|\\{([A-Za-z0-9_.]+)\\})");
+
+	/**
+	 * The raw values, by name, in the definition order
+	 */
+	private final Map<String, String> definitions;
+
+	/**
+	 * The names of the definitions referenced by each definition
+	 */
+	private final transient Map<String, Set<String>> dependencies;
+
+	/**
+	 * Constructor
+	 *
+	 * @param definitions The raw values, by name
+	 * @throws IllegalArgumentException When the definitions contain a cycle
+	 */
+	public VariableDefinitions(Map<String, String> definitions) {
+		this.definitions = new LinkedHashMap<String, String>(definitions);
+		this.dependencies = buildDependencies(this.definitions);
+
+		checkCycles();
+	}
+
+	/**
+	 * Parse the definitions, one per line. Only the first <em>=</em> separates the name
+	 * from the value so the values can contain <em>=</em>.
+	 *
+	 * @param text The definitions
+	 * @return The definitions parsed
+	 * @throws IllegalArgumentException When the definitions contain a cycle
+	 */
+	public static VariableDefinitions parse(String text) {
+		Map<String, String> definitions = new LinkedHashMap<String, String>();
+
+		if (text != null) {
+			for (String line : text.split("\r?\n")) {
+				int separator = line.indexOf('=');
+				if (separator > 0) {
+					definitions.put(line.substring(0, separator).trim(), line.substring(separator + 1));
+				}
+			}
+		}
+
+		return new VariableDefinitions(definitions);
+	}
+
+	/**
+	 * @return The raw values, by name
+	 */
+	public Map<String, String> getDefinitions() {
+		return Collections.unmodifiableMap(definitions);
+	}
+
+	/**
+	 * @return True if there is no definition
+	 */
+	public boolean isEmpty() {
+		return definitions.isEmpty();
+	}
+
+	/**
+	 * Evaluate all the definitions. Each definition is evaluated once, after the
+	 * definitions it references.
+	 *
+	 * @param variables The build variables
+	 * @return The values, by name
+	 */
+	public Map<String, String> evaluate(Map<String, String> variables) {
+		Map<String, String> values = new LinkedHashMap<String, String>();
+		for (String name : definitions.keySet()) {
+			evaluate(name, variables, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Evaluate a definition and the definitions it references
+	 *
+	 * @param name The name of the definition
+	 * @param variables The build variables
+	 * @param values The values already evaluated
+	 * @return The value
+	 */
+	private String evaluate(final String name, final Map<String, String> variables, final Map<String, String> values) {
+		String value = values.get(name);
+		if (value != null) {
+			return value;
+		}
+
+		value = Util.replaceMacro(definitions.get(name), new VariableResolver<String>() {
+			public String resolve(String reference) {
+				if (!reference.equals(name) && definitions.containsKey(reference)) {
+					return evaluate(reference, variables, values);
+				}
+				return variables.get(reference);
+			}
+		});
+
+		values.put(name, value);
+		return value;
+	}
+
+	/**
+	 * Fail when the definitions reference each other in a cycle
+	 *
+	 * @throws IllegalArgumentException When a cycle is found
+	 */
+	private void checkCycles() {
+		Set<String> done = new LinkedHashSet<String>();
+		for (String name : definitions.keySet()) {
+			checkCycles(name, new ArrayList<String>(), done);
+		}
+	}
+
+	/**
+	 * Depth first walk of the dependency graph
+	 *
+	 * @param name The definition to walk from
+	 * @param path The definitions being walked
+	 * @param done The definitions already known without cycle
+	 * @throws IllegalArgumentException When a cycle is found
+	 */
+	private void checkCycles(String name, List<String> path, Set<String> done) {
+		if (done.contains(name)) {
+			return;
+		}
+
+		int index = path.indexOf(name);
+		if (index >= 0) {
+			List<String> cycle = new ArrayList<String>(path.subList(index, path.size()));
+			cycle.add(name);
+			throw new IllegalArgumentException("The variables reference each other in a cycle: " + Util.join(cycle, " -> "));
+		}
+
+		path.add(name);
+		for (String dependency : dependencies.get(name)) {
+			checkCycles(dependency, path, done);
+		}
+		path.remove(path.size() - 1);
+
+		done.add(name);
+	}
+
+	/**
+	 * Find the definitions referenced by each definition. A definition referencing
+	 * itself reads the build variable and does not depend on itself.
+	 *
+	 * @param definitions The raw values, by name
+	 * @return The names of the definitions referenced, by name
+	 */
+	private static Map<String, Set<String>> buildDependencies(Map<String, String> definitions) {
+		Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+
+		for (Map.Entry<String, String> definition : definitions.entrySet()) {
+			Set<String> references = new LinkedHashSet<String>();
+
+			Matcher matcher = REFERENCE.matcher(definition.getValue());
+			while (matcher.find()) {
+				String reference = matcher.group(2) != null ? matcher.group(2) : matcher.group(1);
+				if (!reference.equals(definition.getKey()) && definitions.containsKey(reference)) {
+					references.add(reference);
+				}
+			}
+
+			dependencies.put(definition.getKey(), references);
+		}
+
+		return dependencies;
+	}
+}
@@ -1,5 +1,8 @@
 package com.lotaris.jenkins.ansible.model;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -13,6 +16,11 @@ public class Ansible {
 	 * A list of custom properties to help working with the Ansible command
 	 */
 	private Map<String, String> properties;
+
+	/**
+	 * A list of global variables shared by all the playbooks
+	 */
+	private Map<String, String> vars;
 	
 	/**
 	 * The inventory file to modify the behavior of Ansible command
@@ -28,20 +36,41 @@ public class Ansible {
 	 * List of playbooks available in the configuration file
 	 */
 	private List<Playbook> playbooks;
+
+	/**
+	 * List of configuration files to include, relative to this file
+	 */
+	private List<String> include;
+	
+	/**
+	 * Whether the configuration is shared and can no longer be modified
+	 */
+	private boolean frozen;
 	
 	public Map<String, String> getProperties() {
 		return properties;
 	}
 
 	public void setProperties(Map<String, String> properties) {
+		checkNotFrozen();
 		this.properties = properties;
 	}
 
+	public Map<String, String> getVars() {
+		return vars;
+	}
+
+	public void setVars(Map<String, String> vars) {
+		checkNotFrozen();
+		this.vars = vars;
+	}
+
 	public String getInventory() {
 		return inventory;
 	}
 
 	public void setInventory(String inventory) {
+		checkNotFrozen();
 		this.inventory = inventory;
 	}
 
@@ -50,6 +79,7 @@ public class Ansible {
 	}
 
 	public void setVerbose(String verbose) {
+		checkNotFrozen();
 		this.verbose = verbose;
 	}
 
@@ -58,15 +88,61 @@ public class Ansible {
 	}
 
 	public void setPlaybooks(List<Playbook> playbooks) {
+		checkNotFrozen();
 		this.playbooks = playbooks;
 	}
 	
+	public List<String> getInclude() {
+		return include;
+	}
+
+	public void setInclude(List<String> include) {
+		checkNotFrozen();
+		this.include = include;
+	}
+	
+	/**
+	 * Make the configuration and its playbooks read only, once it is shared by the builds
+	 * 
+	 * @return This configuration
+	 */
+	public Ansible freeze() {
+		if (!frozen) {
+			properties = properties != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(properties)) : null;
+			vars = vars != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(vars)) : null;
+			include = include != null ? Collections.unmodifiableList(new ArrayList<String>(include)) : null;
+
+			if (playbooks != null) {
+				for (Playbook playbook : playbooks) {
+					if (playbook != null) {
+						playbook.freeze();
+					}
+				}
+				playbooks = Collections.unmodifiableList(new ArrayList<Playbook>(playbooks));
+			}
+
+			frozen = true;
+		}
+		return this;
+	}
+
+	/**
+	 * @throws IllegalStateException When the configuration is shared
+	 */
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("The Ansible configuration is shared by the builds and cannot be modified.");
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return 
 			"Properties: " + properties + ", " +
+			"Vars: " + vars + ", " +
 			"Inventory: " + inventory + ", " + 
 			"Verbose: " + verbose + ", " +  
-			"Playbooks: " + playbooks;
+			"Playbooks: " + playbooks + ", " +
+			"Include: " + include;
 	}
 }
@@ -0,0 +1,191 @@
+package com.lotaris.jenkins.ansible.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable variables resolved through layers, the top layer winning. Adding a layer
+ * returns new variables sharing all the lower layers, so many playbooks on top of the
+ * same global variables hold only their own values.
+ */
+public final class LayeredVariables {
+	/**
+	 * Variables without any layer
+	 */
+	public static final LayeredVariables EMPTY = new LayeredVariables(null, null, Collections.<String, String>emptyMap());
+
+	/**
+	 * The layer name
+	 */
+	private final String layer;
+
+	/**
+	 * The layer below, null for the bottom one
+	 */
+	private final LayeredVariables parent;
+
+	/**
+	 * The values of this layer only
+	 */
+	private final Map<String, String> values;
+
+	/**
+	 * Constructor
+	 *
+	 * @param layer The layer name
+	 * @param parent The layer below
+	 * @param values The values of the layer
+	 */
+	private LayeredVariables(String layer, LayeredVariables parent, Map<String, String> values) {
+		this.layer = layer;
+		this.parent = parent;
+		this.values = values;
+	}
+
+	/**
+	 * Add a layer on top of these variables. The null keys and values are ignored.
+	 *
+	 * @param layer The layer name
+	 * @param values The values of the layer, can be null
+	 * @return The variables with the new layer, these variables if there is no value
+	 */
+	public LayeredVariables with(String layer, Map<String, String> values) {
+		Map<String, String> copy = new LinkedHashMap<String, String>();
+		if (values != null) {
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				if (value.getKey() != null && value.getValue() != null) {
+					copy.put(value.getKey(), value.getValue());
+				}
+			}
+		}
+
+		if (copy.isEmpty()) {
+			return this;
+		}
+
+		return new LayeredVariables(layer, this, Collections.unmodifiableMap(copy));
+	}
+
+	/**
+	 * Add a layer overriding only the keys already present in these variables
+	 *
+	 * @param layer The layer name
+	 * @param values The candidate values, can be null
+	 * @return The variables with the new layer, these variables if nothing is overridden
+	 */
+	public LayeredVariables override(String layer, Map<String, String> values) {
+		if (values == null) {
+			return this;
+		}
+
+		Map<String, String> overrides = new LinkedHashMap<String, String>();
+		for (String key : keySet()) {
+			if (values.containsKey(key)) {
+				overrides.put(key, values.get(key));
+			}
+		}
+
+		return with(layer, overrides);
+	}
+
+	/**
+	 * @param key The variable name
+	 * @return The value from the top most layer defining it, null if not defined
+	 */
+	public String get(String key) {
+		for (LayeredVariables current = this; current != null; current = current.parent) {
+			String value = current.values.get(key);
+			if (value != null) {
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param key The variable name
+	 * @return The name of the top most layer defining the variable, null if not defined
+	 */
+	public String getLayer(String key) {
+		for (LayeredVariables current = this; current != null; current = current.parent) {
+			if (current.values.containsKey(key)) {
+				return current.layer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The variable names, from the bottom layer to the top one
+	 */
+	public Set<String> keySet() {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (LayeredVariables current : layers()) {
+			keys.addAll(current.values.keySet());
+		}
+		return keys;
+	}
+
+	/**
+	 * @return True if no variable is defined
+	 */
+	public boolean isEmpty() {
+		return parent == null && values.isEmpty();
+	}
+
+	/**
+	 * Describe which layer won for each variable and which layers were overridden
+	 *
+	 * @return One line per variable
+	 */
+	public List<String> explain() {
+		List<String> lines = new ArrayList<String>();
+
+		for (String key : keySet()) {
+			StringBuilder line = new StringBuilder()
+				.append(key).append(" = ").append(get(key))
+				.append(" [").append(getLayer(key)).append("]");
+
+			boolean winner = true;
+			for (LayeredVariables current = this; current != null; current = current.parent) {
+				if (current.values.containsKey(key)) {
+					if (!winner) {
+						line.append(", overrides [").append(current.layer).append("]");
+					}
+					winner = false;
+				}
+			}
+
+			lines.add(line.toString());
+		}
+
+		return lines;
+	}
+
+	/**
+	 * @return The layers, from the bottom one to the top one
+	 */
+	private List<LayeredVariables> layers() {
+		List<LayeredVariables> layers = new ArrayList<LayeredVariables>();
+		for (LayeredVariables current = this; current != null; current = current.parent) {
+			layers.add(0, current);
+		}
+		return layers;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (LayeredVariables current : layers()) {
+			if (current.layer != null) {
+				sb.append(sb.length() > 0 ? ", " : "").append(current.layer).append(": ").append(current.values);
+			}
+		}
+		return sb.toString();
+	}
+}
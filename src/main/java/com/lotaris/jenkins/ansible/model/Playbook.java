@@ -1,5 +1,7 @@
 package com.lotaris.jenkins.ansible.model;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,11 +43,17 @@ public class Playbook {
 	 */
 	private String verbose;
 	
+	/**
+	 * Whether the playbook is shared and can no longer be modified
+	 */
+	private boolean frozen;
+	
 	public Map<String, String> getVars() {
 		return vars;
 	}
 
 	public void setVars(Map<String, String> vars) {
+		checkNotFrozen();
 		this.vars = vars;
 	}
 
@@ -54,6 +62,7 @@ public class Playbook {
 	}
 
 	public void setProperties(Map<String, String> properties) {
+		checkNotFrozen();
 		this.properties = properties;
 	}
 
@@ -62,6 +71,7 @@ public class Playbook {
 	}
 
 	public void setFile(String file) {
+		checkNotFrozen();
 		this.file = file;
 	}
 
@@ -70,6 +80,7 @@ public class Playbook {
 	}
 
 	public void setInventory(String inventory) {
+		checkNotFrozen();
 		this.inventory = inventory;
 	}
 
@@ -78,6 +89,7 @@ public class Playbook {
 	}
 
 	public void setName(String name) {
+		checkNotFrozen();
 		this.name = name;
 	}
 
@@ -86,9 +98,33 @@ public class Playbook {
 	}
 
 	public void setVerbose(String verbose) {
+		checkNotFrozen();
 		this.verbose = verbose;
 	}	
 
+	/**
+	 * Make the playbook read only, once its configuration is shared by the builds
+	 * 
+	 * @return This playbook
+	 */
+	public Playbook freeze() {
+		if (!frozen) {
+			vars = vars != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(vars)) : null;
+			properties = properties != null ? Collections.unmodifiableMap(new LinkedHashMap<String, String>(properties)) : null;
+			frozen = true;
+		}
+		return this;
+	}
+
+	/**
+	 * @throws IllegalStateException When the playbook is shared
+	 */
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new IllegalStateException("The playbook is shared by the builds and cannot be modified.");
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return 
@@ -0,0 +1,61 @@
+package com.lotaris.jenkins.ansible.yaml;
+
+import java.io.IOException;
+
+/**
+ * Error in an Ansible configuration file or in one of the fragments it includes
+ */
+public class AnsibleConfigurationException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Line of the error in the file, starting at 1, 0 when unknown
+	 */
+	private final int line;
+
+	/**
+	 * Column of the error in the line, starting at 1, 0 when unknown
+	 */
+	private final int column;
+
+	/**
+	 * Constructor
+	 *
+	 * @param message The error message
+	 */
+	public AnsibleConfigurationException(String message) {
+		this(message, 0, 0, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param message The error message
+	 * @param cause The cause of the error
+	 */
+	public AnsibleConfigurationException(String message, Throwable cause) {
+		this(message, 0, 0, cause);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param message The error message
+	 * @param line Line of the error, starting at 1, 0 when unknown
+	 * @param column Column of the error, starting at 1, 0 when unknown
+	 * @param cause The cause of the error
+	 */
+	public AnsibleConfigurationException(String message, int line, int column, Throwable cause) {
+		super(message, cause);
+		this.line = line;
+		this.column = column;
+	}
+
+	public int getLine() {
+		return line;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+}
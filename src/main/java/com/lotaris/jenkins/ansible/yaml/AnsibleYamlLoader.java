@@ -1,32 +1,417 @@
 package com.lotaris.jenkins.ansible.yaml;
 
 import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.Playbook;
+import hudson.Util;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.Mark;
+import org.yaml.snakeyaml.error.MarkedYAMLException;
+import org.yaml.snakeyaml.error.YAMLException;
 import org.yaml.snakeyaml.representer.Representer;
 
 /**
  * Ansible YAML file configuration loader
  *
+ * A configuration file can be split in fragments with <em>include</em>, a list of
+ * files relative to the including file. The fragments are parsed once and kept
+ * with their fingerprint. On the next load, only the fragments whose fingerprint
+ * changed are parsed again and merged into the cached Ansible configuration.
+ *
+ * The merge gives precedence to the including file: the first inventory and verbosity
+ * found from the root file wins, the properties and variables of the including file override
+ * the ones of the included files, and the playbooks of all the fragments are gathered.
+ * A playbook name can only be defined once, in a fragment or across fragments.
+ *
+ * The caches keep the most recently used fragments and configurations only, their size
+ * can be set with the <em>fragments</em> and <em>configurations</em> system properties
+ * of this class. The configurations returned are read only, they are shared by the builds.
+ *
  * @author Laurent Prevost <laurent.prevost@lotaris.com>
  */
 public class AnsibleYamlLoader {
+	/**
+	 * Number of fragments kept parsed
+	 */
+	private static final int MAX_FRAGMENTS = Integer.getInteger(AnsibleYamlLoader.class.getName() + ".fragments", 500);
+
+	/**
+	 * Number of configurations kept merged
+	 */
+	private static final int MAX_CONFIGURATIONS = Integer.getInteger(AnsibleYamlLoader.class.getName() + ".configurations", 100);
+
+	/**
+	 * The fragments parsed, by absolute path
+	 */
+	private static final Map<File, Fragment> FRAGMENTS = new LeastRecentlyUsed<Fragment>(MAX_FRAGMENTS);
+
+	/**
+	 * The configurations merged, by absolute path of the root file
+	 */
+	private static final Map<File, Merged> CONFIGURATIONS = new LeastRecentlyUsed<Merged>(MAX_CONFIGURATIONS);
+
 	/**
 	 * Load a configuration file
-	 * 
+	 *
+	 * The configuration returned is shared between the callers and is read only.
+	 *
 	 * @param configFilePath The configuration file to load
 	 * @return The Ansible configuration loaded
 	 * @throws FileNotFoundException When no file is found
+	 * @throws AnsibleConfigurationException When the configuration or one of its fragments is not valid
+	 * @throws IOException When a file cannot be read
+	 */
+	public static Ansible load(String configFilePath) throws IOException {
+		return loadMerged(new File(configFilePath).getAbsoluteFile()).ansible;
+	}
+
+	/**
+	 * Retrieve the fingerprint of a configuration file and of all the fragments it includes
+	 *
+	 * @param configFilePath The configuration file
+	 * @return The fingerprint of the configuration
+	 * @throws IOException When the configuration cannot be loaded
+	 */
+	public static String fingerprint(String configFilePath) throws IOException {
+		return loadMerged(new File(configFilePath).getAbsoluteFile()).fingerprint;
+	}
+
+	/**
+	 * Load a configuration file and the fragments it includes, reusing what did not change
+	 *
+	 * @param root The configuration file
+	 * @return The configuration merged
+	 * @throws IOException When the configuration cannot be loaded
+	 */
+	private static Merged loadMerged(File root) throws IOException {
+		// Walk the include graph, from the root file first
+		List<Fragment> fragments = new ArrayList<Fragment>();
+		walk(root, new ArrayList<File>(), new LinkedHashMap<File, Fragment>(), fragments);
+
+		StringBuilder fingerprints = new StringBuilder();
+		for (Fragment fragment : fragments) {
+			fingerprints.append(fragment.file).append('=').append(fragment.fingerprint).append('\n');
+		}
+		String fingerprint = Util.getDigestOf(fingerprints.toString());
+
+		synchronized (CONFIGURATIONS) {
+			Merged merged = CONFIGURATIONS.get(root);
+			if (merged != null && merged.fingerprint.equals(fingerprint)) {
+				return merged;
+			}
+		}
+
+		Merged merged = new Merged(merge(fragments), fingerprint);
+		synchronized (CONFIGURATIONS) {
+			CONFIGURATIONS.put(root, merged);
+		}
+		return merged;
+	}
+
+	/**
+	 * Depth first walk of the include graph
+	 *
+	 * @param file The file to walk from
+	 * @param path The files being walked, to detect the cycles
+	 * @param visited The files already walked
+	 * @param fragments The fragments in the walk order
+	 * @throws IOException When a fragment cannot be loaded or when there is an include cycle
+	 */
+	private static void walk(File file, List<File> path, Map<File, Fragment> visited, List<Fragment> fragments) throws IOException {
+		if (path.contains(file)) {
+			List<File> cycle = new ArrayList<File>(path.subList(path.indexOf(file), path.size()));
+			cycle.add(file);
+			throw new AnsibleConfigurationException("The Ansible configuration includes are in a cycle: " + Util.join(cycle, " -> "));
+		}
+
+		// Already reached through another include
+		if (visited.containsKey(file)) {
+			return;
+		}
+
+		Fragment fragment = loadFragment(file);
+		visited.put(file, fragment);
+		fragments.add(fragment);
+
+		path.add(file);
+		for (File include : fragment.includes) {
+			walk(include, path, visited, fragments);
+		}
+		path.remove(path.size() - 1);
+	}
+
+	/**
+	 * Load a fragment, parsing it only when its fingerprint changed
+	 *
+	 * @param file The fragment file
+	 * @return The fragment
+	 * @throws IOException When the fragment cannot be read or parsed
+	 */
+	private static Fragment loadFragment(File file) throws IOException {
+		if (!file.isFile()) {
+			throw new FileNotFoundException("The Ansible configuration file [" + file + "] does not exist.");
+		}
+
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		Fragment cached;
+		synchronized (FRAGMENTS) {
+			cached = FRAGMENTS.get(file);
+		}
+
+		// Same size and date, the content is not read again
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+			return cached;
+		}
+
+		byte[] content = readFully(file);
+		String fingerprint = Util.getDigestOf(new ByteArrayInputStream(content));
+
+		Fragment fragment;
+		if (cached != null && cached.fingerprint.equals(fingerprint)) {
+			fragment = new Fragment(file, lastModified, length, fingerprint, cached.ansible, cached.includes);
+		}
+		else {
+			Ansible ansible = parse(file, content).freeze();
+			fragment = new Fragment(file, lastModified, length, fingerprint, ansible, resolveIncludes(file, ansible));
+		}
+
+		synchronized (FRAGMENTS) {
+			FRAGMENTS.put(file, fragment);
+		}
+
+		return fragment;
+	}
+
+	/**
+	 * Parse a fragment
+	 *
+	 * @param file The fragment file
+	 * @param content The fragment content
+	 * @return The Ansible configuration of the fragment
+	 * @throws AnsibleConfigurationException When the fragment is not valid YAML
 	 */
-	public static Ansible load(String configFilePath) throws FileNotFoundException {
+	private static Ansible parse(File file, byte[] content) throws AnsibleConfigurationException {
 		// Read the Ansible configuration
 		Representer representer = new Representer();
 		representer.getPropertyUtils().setSkipMissingProperties(true);
 
 		Yaml yaml = new Yaml(representer);
 
-		return (Ansible) yaml.loadAs(new FileInputStream(new File(configFilePath)), Ansible.class);
+		try {
+			Ansible ansible = yaml.loadAs(new ByteArrayInputStream(content), Ansible.class);
+			return ansible != null ? ansible : new Ansible();
+		}
+		catch (MarkedYAMLException e) {
+			// Point at the problem, or at its context when SnakeYAML does not know the exact place
+			Mark mark = e.getProblemMark() != null ? e.getProblemMark() : e.getContextMark();
+			String problem = e.getProblem() != null ? e.getProblem() : e.getContext();
+
+			if (mark == null) {
+				throw new AnsibleConfigurationException("Unable to parse the Ansible configuration file [" + file + "]. " + problem, e);
+			}
+
+			throw new AnsibleConfigurationException(
+				"Unable to parse the Ansible configuration file [" + file + "] at line " + (mark.getLine() + 1) + ", column " + (mark.getColumn() + 1) + ": " + problem + "\n" + mark.get_snippet(),
+				mark.getLine() + 1,
+				mark.getColumn() + 1,
+				e
+			);
+		}
+		catch (YAMLException e) {
+			throw new AnsibleConfigurationException("Unable to parse the Ansible configuration file [" + file + "]. " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Resolve the includes of a fragment relative to its directory
+	 *
+	 * @param file The fragment file
+	 * @param ansible The Ansible configuration of the fragment
+	 * @return The absolute files included
+	 */
+	private static List<File> resolveIncludes(File file, Ansible ansible) {
+		if (ansible.getInclude() == null || ansible.getInclude().isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<File> includes = new ArrayList<File>();
+		for (String include : ansible.getInclude()) {
+			File includeFile = new File(include);
+			if (!includeFile.isAbsolute()) {
+				includeFile = new File(file.getParentFile(), include);
+			}
+			includes.add(includeFile.getAbsoluteFile());
+		}
+		return includes;
+	}
+
+	/**
+	 * Merge the fragments into one Ansible configuration
+	 *
+	 * @param fragments The fragments, the root file first
+	 * @return The Ansible configuration merged
+	 * @throws AnsibleConfigurationException When a playbook name is used twice
+	 */
+	private static Ansible merge(List<Fragment> fragments) throws AnsibleConfigurationException {
+		checkPlaybookNames(fragments);
+
+		// Nothing to merge without includes
+		if (fragments.size() == 1) {
+			return fragments.get(0).ansible;
+		}
+
+		Ansible merged = new Ansible();
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		Map<String, String> vars = new LinkedHashMap<String, String>();
+		List<Playbook> playbooks = new ArrayList<Playbook>();
+
+		// The including fragments come first and win
+		for (int i = fragments.size() - 1; i >= 0; i--) {
+			Ansible ansible = fragments.get(i).ansible;
+
+			if (ansible.getProperties() != null) {
+				properties.putAll(ansible.getProperties());
+			}
+			if (ansible.getVars() != null) {
+				vars.putAll(ansible.getVars());
+			}
+			if (ansible.getInventory() != null && !ansible.getInventory().isEmpty()) {
+				merged.setInventory(ansible.getInventory());
+			}
+			if (ansible.getVerbose() != null && !ansible.getVerbose().isEmpty()) {
+				merged.setVerbose(ansible.getVerbose());
+			}
+		}
+
+		for (Fragment fragment : fragments) {
+			if (fragment.ansible.getPlaybooks() != null) {
+				playbooks.addAll(fragment.ansible.getPlaybooks());
+			}
+		}
+
+		merged.setProperties(properties);
+		merged.setVars(vars);
+		merged.setPlaybooks(playbooks);
+
+		return merged.freeze();
+	}
+
+	/**
+	 * Check that each playbook name is defined once, in the same fragment or across fragments
+	 *
+	 * @param fragments The fragments
+	 * @throws AnsibleConfigurationException When a playbook name is used twice
+	 */
+	private static void checkPlaybookNames(List<Fragment> fragments) throws AnsibleConfigurationException {
+		Map<String, File> playbookFiles = new HashMap<String, File>();
+
+		for (Fragment fragment : fragments) {
+			if (fragment.ansible.getPlaybooks() == null) {
+				continue;
+			}
+
+			for (Playbook playbook : fragment.ansible.getPlaybooks()) {
+				// The playbooks without name are reported by the steps
+				if (playbook == null || playbook.getName() == null) {
+					continue;
+				}
+
+				File other = playbookFiles.put(playbook.getName(), fragment.file);
+				if (other != null && other.equals(fragment.file)) {
+					throw new AnsibleConfigurationException("The playbook [" + playbook.getName() + "] is defined twice in [" + fragment.file + "].");
+				}
+				else if (other != null) {
+					throw new AnsibleConfigurationException("The playbook [" + playbook.getName() + "] is defined in [" + other + "] and in [" + fragment.file + "].");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param file The file to read
+	 * @return The content of the file
+	 * @throws IOException When the file cannot be read
+	 */
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A configuration file or a fragment of it, parsed
+	 */
+	private static class Fragment {
+		private final File file;
+		private final long lastModified;
+		private final long length;
+		private final String fingerprint;
+		private final Ansible ansible;
+		private final List<File> includes;
+
+		private Fragment(File file, long lastModified, long length, String fingerprint, Ansible ansible, List<File> includes) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.fingerprint = fingerprint;
+			this.ansible = ansible;
+			this.includes = includes;
+		}
+	}
+
+	/**
+	 * Cache keeping the most recently used entries
+	 */
+	private static class LeastRecentlyUsed<T> extends LinkedHashMap<File, T> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		private LeastRecentlyUsed(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<File, T> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/**
+	 * A configuration merged with all its fragments
+	 */
+	private static class Merged {
+		private final Ansible ansible;
+		private final String fingerprint;
+
+		private Merged(Ansible ansible, String fingerprint) {
+			this.ansible = ansible;
+			this.fingerprint = fingerprint;
+		}
 	}
 }
@@ -0,0 +1,394 @@
+package com.lotaris.jenkins.ansible;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.queue.QueueTaskFuture;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * End-to-end throughput harness of the Ansible command runner, using a stand-in
+ * <em>ansible-playbook</em> put on the PATH by the <em>throughput</em> profile:
+ *
+ * <pre>
+ * mvn test -P throughput
+ * </pre>
+ *
+ * Each scenario measures the launch latency, from the start of the Ansible build step to
+ * the start of the stand-in process, then from the start of the process the log throughput
+ * and the time the build log takes to drain once the process has exited, along with the
+ * controller heap and CPU. The figures are written as JSON in <em>target/throughput</em>.
+ *
+ * By default the figures are only recorded. With <em>-Dansible.throughput.tolerance=1.5</em>
+ * they are also checked against <em>throughput-baselines.json</em>: a <em>min</em> baseline
+ * is a floor and a <em>max</em> baseline a ceiling of the figure of the same name, both
+ * relaxed by the tolerance factor. The baselines in the repository are starting values,
+ * replace them with the figures recorded on the machine running the profile before turning
+ * the checks on. The volumes can be changed with the <em>ansible.throughput.*</em> system
+ * properties, the baselines then no longer apply.
+ */
+public class AnsibleCommandBuilderThroughputIT {
+	/**
+	 * Directory on the PATH where the stand-in is installed
+	 */
+	private static final File FAKE_BIN = new File(System.getProperty("ansible.fakeBin", "target/fake-bin"));
+
+	/**
+	 * Directory where the results are written
+	 */
+	private static final File RESULTS = new File(System.getProperty("ansible.throughput.results", "target/throughput"));
+
+	/**
+	 * Timeout of a build, in minutes
+	 */
+	private static final int TIMEOUT = Integer.getInteger("ansible.throughput.timeout", 10);
+
+	/**
+	 * Factor by which the baselines are relaxed, 0 to only record the figures
+	 */
+	private static final double TOLERANCE = Double.parseDouble(System.getProperty("ansible.throughput.tolerance", "0"));
+
+	/**
+	 * The baselines, by scenario
+	 */
+	private static JSONObject baselines;
+
+	@Rule
+	public JenkinsRule j = new JenkinsRule();
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@BeforeClass
+	public static void installFakeAnsible() throws IOException {
+		assertTrue(FAKE_BIN.isDirectory() || FAKE_BIN.mkdirs());
+		RESULTS.mkdirs();
+
+		File script = new File(FAKE_BIN, "ansible-playbook");
+		InputStream in = AnsibleCommandBuilderThroughputIT.class.getResourceAsStream("ansible-playbook");
+		OutputStream out = new FileOutputStream(script);
+		try {
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, len);
+			}
+		}
+		finally {
+			in.close();
+			out.close();
+		}
+		assertTrue(script.setExecutable(true));
+
+		baselines = JSONObject.fromObject(IOUtils.toString(AnsibleCommandBuilderThroughputIT.class.getResourceAsStream("throughput-baselines.json"), "UTF-8"));
+	}
+
+	@Test
+	public void singleBuildLogThroughput() throws Exception {
+		scenario("single-build", 1, Integer.getInteger("ansible.throughput.lines", 50000), 120, 0, 0, 0, Result.SUCCESS);
+	}
+
+	@Test
+	public void rateLimitedBuild() throws Exception {
+		scenario("rate-limited", 1, 1000, 80, 500, 0, 0, Result.SUCCESS);
+	}
+
+	@Test
+	public void longIdleBuild() throws Exception {
+		scenario("long-idle", 1, 10, 80, 0, 5, 0, Result.SUCCESS);
+	}
+
+	@Test
+	public void failingBuild() throws Exception {
+		JSONObject result = scenario("failing-build", 1, 100, 80, 0, 0, 2, Result.FAILURE);
+		assertEquals(1, result.getJSONArray("builds").size());
+	}
+
+	@Test
+	public void concurrentBuilds() throws Exception {
+		scenario("concurrent-builds", Integer.getInteger("ansible.throughput.concurrency", 50), Integer.getInteger("ansible.throughput.concurrentLines", 5000), 120, 0, 0, 0, Result.SUCCESS);
+	}
+
+	/**
+	 * Run builds at the same time and record their figures
+	 *
+	 * @param name The scenario name
+	 * @param builds Number of concurrent builds
+	 * @param lines Lines printed by each build
+	 * @param lineBytes Padding of each line
+	 * @param rate Lines per second, 0 for as fast as possible
+	 * @param duration Seconds to wait before the recap
+	 * @param exit Exit code of the stand-in
+	 * @param expected Expected build result
+	 * @return The figures of the scenario
+	 * @throws Exception When the scenario cannot run
+	 */
+	private JSONObject scenario(String name, int builds, int lines, int lineBytes, int rate, int duration, int exit, Result expected) throws Exception {
+		File config = writeConfig(lines, lineBytes, rate, duration, exit);
+		j.jenkins.setNumExecutors(builds + 2);
+
+		List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+		for (int i = 0; i < builds; i++) {
+			FreeStyleProject project = j.createFreeStyleProject(name + "-" + i);
+			project.getBuildersList().add(new StepStartMark());
+			project.getBuildersList().add(new AnsibleCommandBuilder(config.getAbsolutePath(), null, "fake", ""));
+			projects.add(project);
+		}
+
+		HeapSampler heap = new HeapSampler();
+		heap.start();
+		long cpuBefore = processCpuTime();
+		long start = System.currentTimeMillis();
+
+		List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+		for (FreeStyleProject project : projects) {
+			futures.add(project.scheduleBuild2(0));
+		}
+
+		JSONArray buildResults = new JSONArray();
+		long totalLogBytes = 0;
+		long firstProcessStart = Long.MAX_VALUE;
+		long lastProcessEnd = 0;
+		long maxProcess = 0;
+		long maxDrain = 0;
+		long totalLatency = 0;
+		long maxLatency = 0;
+
+		for (QueueTaskFuture<FreeStyleBuild> future : futures) {
+			FreeStyleBuild build = future.get(TIMEOUT, TimeUnit.MINUTES);
+			j.assertBuildStatus(expected, build);
+			j.assertLogContains("FAKE_ANSIBLE_END", build);
+
+			// Timed from the Ansible step and the stand-in process, the queue and the checkout are left out
+			long stepStart = readMark(build.getLogFile(), StepStartMark.MARK);
+			long processStart = readMark(build.getLogFile(), "FAKE_ANSIBLE_START");
+			long latency = processStart - stepStart;
+			long processEnd = readMark(build.getLogFile(), "FAKE_ANSIBLE_END");
+			long drain = Math.max(0, build.getStartTimeInMillis() + build.getDuration() - processEnd);
+			long logBytes = build.getLogFile().length();
+
+			totalLogBytes += logBytes;
+			firstProcessStart = Math.min(firstProcessStart, processStart);
+			lastProcessEnd = Math.max(lastProcessEnd, processEnd);
+			maxProcess = Math.max(maxProcess, processEnd - processStart);
+			maxDrain = Math.max(maxDrain, drain);
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+
+			JSONObject buildResult = new JSONObject();
+			buildResult.put("build", build.getFullDisplayName());
+			buildResult.put("launchLatencyMillis", latency);
+			buildResult.put("processMillis", processEnd - processStart);
+			buildResult.put("drainMillis", drain);
+			buildResult.put("durationMillis", build.getDuration());
+			buildResult.put("logBytes", logBytes);
+			buildResults.add(buildResult);
+		}
+
+		// The log is written while the processes run and until it is drained
+		long logWindow = lastProcessEnd + maxDrain - firstProcessStart;
+
+		long wall = System.currentTimeMillis() - start;
+		long cpu = processCpuTime() - cpuBefore;
+		heap.stopSampling();
+
+		JSONObject result = new JSONObject();
+		result.put("scenario", name);
+		result.put("builds", buildResults);
+		result.put("concurrency", builds);
+		result.put("linesPerBuild", lines);
+		result.put("wallMillis", wall);
+		result.put("averageLaunchLatencyMillis", totalLatency / builds);
+		result.put("maxLaunchLatencyMillis", maxLatency);
+		result.put("processMillis", maxProcess);
+		result.put("drainMillis", maxDrain);
+		result.put("logBytes", totalLogBytes);
+		result.put("logBytesPerSecond", logWindow > 0 ? totalLogBytes * 1000 / logWindow : 0);
+		result.put("controllerCpuMillis", cpu < 0 ? -1 : cpu / 1000000);
+		result.put("heapBeforeBytes", heap.before);
+		result.put("heapPeakBytes", heap.peak);
+		result.put("heapAfterBytes", heap.after);
+		result.put("heapGrowthBytes", heap.peak - heap.before);
+
+		Writer writer = new FileWriter(new File(RESULTS, name + ".json"));
+		try {
+			result.write(writer);
+		}
+		finally {
+			writer.close();
+		}
+
+		assertBaselines(name, result);
+
+		return result;
+	}
+
+	/**
+	 * Check the figures of a scenario against its baselines
+	 *
+	 * @param name The scenario name
+	 * @param result The figures of the scenario
+	 */
+	private static void assertBaselines(String name, JSONObject result) {
+		if (TOLERANCE <= 0 || !baselines.has(name)) {
+			return;
+		}
+
+		JSONObject baseline = baselines.getJSONObject(name);
+		for (Object key : baseline.keySet()) {
+			String bound = (String) key;
+			String figure = Character.toLowerCase(bound.charAt(3)) + bound.substring(4);
+			long expected = baseline.getLong(bound);
+			long actual = result.getLong(figure);
+
+			if (bound.startsWith("min")) {
+				assertTrue(name + ": " + figure + " is " + actual + ", below the baseline of " + expected + " (tolerance " + TOLERANCE + ")", actual >= expected / TOLERANCE);
+			}
+			else if (bound.startsWith("max")) {
+				assertTrue(name + ": " + figure + " is " + actual + ", above the baseline of " + expected + " (tolerance " + TOLERANCE + ")", actual <= expected * TOLERANCE);
+			}
+			else {
+				fail(name + ": unknown baseline [" + bound + "], it must start with min or max");
+			}
+		}
+	}
+
+	/**
+	 * Write an Ansible configuration driving the stand-in through extra variables
+	 */
+	private File writeConfig(int lines, int lineBytes, int rate, int duration, int exit) throws IOException {
+		File config = tmp.newFile("ansible.yml");
+
+		Writer writer = new FileWriter(config);
+		try {
+			writer.write(
+				"playbooks:\n" +
+				"  - name: fake\n" +
+				"    file: site.yml\n" +
+				"    vars:\n" +
+				"      fake_lines: \"" + lines + "\"\n" +
+				"      fake_line_bytes: \"" + lineBytes + "\"\n" +
+				"      fake_rate: \"" + rate + "\"\n" +
+				"      fake_duration: \"" + duration + "\"\n" +
+				"      fake_exit: \"" + exit + "\"\n"
+			);
+		}
+		finally {
+			writer.close();
+		}
+
+		return config;
+	}
+
+	/**
+	 * @param log The build log
+	 * @param mark The mark printed by the stand-in with the time, FAKE_ANSIBLE_START or FAKE_ANSIBLE_END
+	 * @return The time printed with the mark
+	 */
+	private static long readMark(File log, String mark) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(log));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(mark + " ")) {
+					return Long.parseLong(line.substring(mark.length() + 1).trim());
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+		throw new AssertionError("The stand-in did not print " + mark + " in " + log);
+	}
+
+	/**
+	 * Print the time the Ansible build step starts, the step running right after this one
+	 */
+	public static class StepStartMark extends TestBuilder {
+		private static final String MARK = "ANSIBLE_STEP_START";
+
+		@Override
+		public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+			listener.getLogger().println(MARK + " " + System.currentTimeMillis());
+			return true;
+		}
+	}
+
+	/**
+	 * @return The CPU time of the controller in nanoseconds, -1 if not available
+	 */
+	private static long processCpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+		}
+		return -1;
+	}
+
+	/**
+	 * Sample the heap of the controller during a scenario
+	 */
+	private static class HeapSampler extends Thread {
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean running = true;
+		private long before;
+		private volatile long peak;
+		private long after;
+
+		private HeapSampler() {
+			super("Ansible throughput heap sampler");
+			setDaemon(true);
+			before = memory.getHeapMemoryUsage().getUsed();
+			peak = before;
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		private void stopSampling() throws InterruptedException {
+			running = false;
+			join();
+			after = memory.getHeapMemoryUsage().getUsed();
+		}
+	}
+}
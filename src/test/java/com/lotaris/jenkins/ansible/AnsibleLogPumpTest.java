@@ -0,0 +1,160 @@
+package com.lotaris.jenkins.ansible;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleLogPumpTest {
+	@Test
+	public void linesAreWrittenInOrder() throws Exception {
+		AnsibleLogPump pump = new AnsibleLogPump(LogOverflowPolicy.BLOCK, 64 * 1024);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+
+		pump.start(sink);
+		String expected = write(pump.getStdout(), 1000);
+		pump.getStdout().write("last line without end of line".getBytes("UTF-8"));
+		pump.stop();
+
+		assertEquals(expected + "last line without end of line", sink.toString("UTF-8"));
+		assertEquals(1001, pump.getCounters().getLines());
+		assertEquals(0, pump.getCounters().getCoalescedLines());
+	}
+
+	@Test
+	public void blockPolicyWaitsForTheLog() throws Exception {
+		SlowSink sink = new SlowSink();
+		final AnsibleLogPump pump = new AnsibleLogPump(LogOverflowPolicy.BLOCK, 1);
+		pump.start(sink);
+
+		final StringBuilder expected = new StringBuilder();
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					expected.append(write(pump.getStdout(), 100));
+				}
+				catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		producer.start();
+
+		// The buffer holds one line, the command waits for the log
+		producer.join(500);
+		assertTrue(producer.isAlive());
+
+		sink.release();
+		producer.join();
+		pump.stop();
+
+		assertEquals(expected.toString(), sink.toString());
+		assertTrue(pump.getCounters().getStallMillis() > 0);
+	}
+
+	@Test
+	public void spillPolicyKeepsEverythingInOrder() throws Exception {
+		SlowSink sink = new SlowSink();
+		AnsibleLogPump pump = new AnsibleLogPump(LogOverflowPolicy.SPILL, 1);
+		pump.start(sink);
+
+		// The command is not stalled while the log is stuck
+		String expected = write(pump.getStdout(), 2000);
+		sink.release();
+		pump.stop();
+
+		assertEquals(expected, sink.toString());
+		assertEquals(2000, pump.getCounters().getLines());
+		assertTrue(pump.getCounters().getSpilledBytes() > 0);
+	}
+
+	@Test
+	public void coalescePolicyKeepsTheProgressLines() throws Exception {
+		SlowSink sink = new SlowSink();
+		AnsibleLogPump pump = new AnsibleLogPump(LogOverflowPolicy.COALESCE, 1);
+		pump.start(sink);
+
+		// The routine lines are dropped while the log is stuck, never waiting for it
+		pump.getStdout().write("TASK [first] ****\n".getBytes("UTF-8"));
+		write(pump.getStdout(), 100);
+		sink.release();
+
+		// The progress lines wait for the log
+		pump.getStdout().write("TASK [last] ****\n".getBytes("UTF-8"));
+		pump.stop();
+
+		String log = sink.toString();
+		assertTrue(log, log.startsWith("TASK [first] ****\n"));
+		assertTrue(log, log.endsWith("TASK [last] ****\n"));
+		assertTrue(log, log.contains("line(s) of output coalesced"));
+		assertTrue(pump.getCounters().getCoalescedLines() >= 98);
+	}
+
+	/**
+	 * Write numbered lines
+	 *
+	 * @param out The stream
+	 * @param count Number of lines
+	 * @return The lines written
+	 */
+	private static String write(OutputStream out, int count) throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			String line = "ok: [host" + (i % 3) + "] => {\"line\": " + i + "}\n";
+			out.write(line.getBytes("UTF-8"));
+			lines.append(line);
+		}
+		return lines.toString();
+	}
+
+	/**
+	 * Build log stuck until released
+	 */
+	private static class SlowSink extends OutputStream {
+		private final CountDownLatch released = new CountDownLatch(1);
+		private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			try {
+				if (!released.await(1, TimeUnit.MINUTES)) {
+					throw new IOException("The sink was never released");
+				}
+			}
+			catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+
+			synchronized (content) {
+				content.write(b, off, len);
+			}
+		}
+
+		private void release() {
+			released.countDown();
+		}
+
+		@Override
+		public String toString() {
+			synchronized (content) {
+				try {
+					return content.toString("UTF-8");
+				}
+				catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+}
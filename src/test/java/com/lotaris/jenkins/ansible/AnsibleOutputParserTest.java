@@ -0,0 +1,96 @@
+package com.lotaris.jenkins.ansible;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AnsibleOutputParserTest {
+	@Test
+	public void outputIsForwardedUntouched() throws IOException {
+		String output = "PLAY [all] ****\r\n\r\nTASK [setup] ****\nok: [web1]\n";
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		parse(out, output);
+
+		assertEquals(output, out.toString("UTF-8"));
+	}
+
+	@Test
+	public void failingTaskAndHostsAreRecorded() throws IOException {
+		AnsiblePlaybookProgressAction progress = parse(new ByteArrayOutputStream(),
+			"TASK [common : install packages] ****\n" +
+			"ok: [web1]\n" +
+			"fatal: [web2]: FAILED! => {\"msg\": \"boom\"}\n" +
+			"TASK [common : restart] ****\n"
+		);
+
+		assertEquals("common : install packages", progress.getFailedTask());
+		assertEquals("common : restart", progress.getLastStartedTask());
+		assertEquals(Arrays.asList("web2"), progress.getFailedHosts());
+		assertTrue(progress.isResumable());
+	}
+
+	@Test
+	public void ansibleOneFormatIsSupported() throws IOException {
+		AnsiblePlaybookProgressAction progress = parse(new ByteArrayOutputStream(),
+			"TASK: [deploy] *********\n" +
+			"failed: [db1 -> localhost] => {\"failed\": true}\n"
+		);
+
+		assertEquals("deploy", progress.getFailedTask());
+		assertEquals(Arrays.asList("db1"), progress.getFailedHosts());
+	}
+
+	@Test
+	public void ignoredFailuresAreForgotten() throws IOException {
+		AnsiblePlaybookProgressAction progress = parse(new ByteArrayOutputStream(),
+			"TASK [optional] ****\n" +
+			"fatal: [web1]: FAILED! => {}\n" +
+			"...ignoring\n"
+		);
+
+		assertNull(progress.getFailedTask());
+		assertTrue(progress.getFailedHosts().isEmpty());
+		assertFalse(progress.isResumable());
+	}
+
+	@Test
+	public void playRecapIsRecorded() throws IOException {
+		AnsiblePlaybookProgressAction progress = parse(new ByteArrayOutputStream(),
+			"PLAY RECAP ****\n" +
+			"web1                       : ok=3    changed=1    unreachable=0    failed=0\n" +
+			"web2                       : ok=1    changed=0    unreachable=1    failed=0\n"
+		);
+
+		assertEquals("ok=3 changed=1 unreachable=0 failed=0", progress.getRecap().get("web1"));
+		assertEquals(Arrays.asList("web2"), progress.getFailedHosts());
+	}
+
+	@Test
+	public void progressLinesAreRecognized() {
+		assertTrue(AnsibleOutputParser.isProgressLine("PLAY [all] ****"));
+		assertTrue(AnsibleOutputParser.isProgressLine("PLAY RECAP ****"));
+		assertTrue(AnsibleOutputParser.isProgressLine("TASK [setup] ****"));
+		assertTrue(AnsibleOutputParser.isProgressLine("fatal: [web1]: FAILED! => {}"));
+		assertTrue(AnsibleOutputParser.isProgressLine("web1    : ok=3    changed=1    unreachable=0    failed=0"));
+		assertFalse(AnsibleOutputParser.isProgressLine("ok: [web1] => {\"msg\": \"hello\"}"));
+		assertFalse(AnsibleOutputParser.isProgressLine("PLAYBOOK done"));
+	}
+
+	private static AnsiblePlaybookProgressAction parse(ByteArrayOutputStream out, String output) throws IOException {
+		AnsiblePlaybookProgressAction progress = new AnsiblePlaybookProgressAction(Collections.<String>emptyList(), null);
+
+		AnsibleOutputParser parser = new AnsibleOutputParser(out, progress);
+		parser.write(output.getBytes("UTF-8"));
+		parser.close();
+
+		return progress;
+	}
+}
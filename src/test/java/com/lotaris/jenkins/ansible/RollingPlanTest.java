@@ -0,0 +1,129 @@
+package com.lotaris.jenkins.ansible;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RollingPlanTest {
+	@Test
+	public void batchesDoubleWhileTheTimePerHostHolds() {
+		RollingPlan plan = new RollingPlan(hosts(20), 1, 0, 0);
+
+		assertEquals(Arrays.asList("host0"), run(plan, 0, 100));
+		assertEquals(2, plan.getBatchSize());
+		run(plan, 0, 200);
+		assertEquals(4, plan.getBatchSize());
+		run(plan, 0, 400);
+		assertEquals(8, plan.getBatchSize());
+	}
+
+	@Test
+	public void batchesAreCappedByTheMaximumAndTheRemainingHosts() {
+		RollingPlan plan = new RollingPlan(hosts(5), 2, 3, 0);
+
+		run(plan, 0, 200);
+		assertEquals(3, plan.getBatchSize());
+		run(plan, 0, 300);
+		assertEquals(0, plan.getRemainingHosts());
+		assertFalse(plan.hasNext());
+		assertEquals(2, plan.getBatches());
+	}
+
+	@Test
+	public void batchesHoldWhenTheTimePerHostDegrades() {
+		RollingPlan plan = new RollingPlan(hosts(20), 1, 0, 0);
+
+		run(plan, 0, 100);
+		run(plan, 0, 260);
+		assertEquals(2, plan.getBatchSize());
+	}
+
+	@Test
+	public void batchesShrinkPastTheSaturation() {
+		RollingPlan plan = new RollingPlan(hosts(20), 2, 0, 0);
+
+		run(plan, 0, 200);
+		assertEquals(4, plan.getBatchSize());
+		run(plan, 0, 1200);
+		assertEquals(1, plan.getBatchSize());
+	}
+
+	@Test
+	public void failedCanaryAbortsTheRollout() {
+		RollingPlan plan = new RollingPlan(hosts(10), 2, 0, 50);
+
+		run(plan, 1, 100);
+		assertFalse(plan.hasNext());
+		assertNotNull(plan.getAbortReason());
+		assertEquals(8, plan.getRemainingHosts());
+	}
+
+	@Test
+	public void failuresWithinTheBudgetRateHoldTheSize() {
+		RollingPlan plan = new RollingPlan(hosts(20), 1, 0, 50);
+
+		run(plan, 0, 100);
+		run(plan, 1, 200);
+		assertNull(plan.getAbortReason());
+		assertEquals(2, plan.getBatchSize());
+	}
+
+	@Test
+	public void failuresAboveTheBudgetRateShrinkTheBatches() {
+		RollingPlan plan = new RollingPlan(hosts(40), 1, 0, 10);
+
+		run(plan, 0, 100);
+		run(plan, 0, 200);
+		run(plan, 1, 400);
+		assertNull(plan.getAbortReason());
+		assertEquals(3, plan.getBatchSize());
+	}
+
+	@Test
+	public void exceedingTheBudgetAbortsTheRollout() {
+		RollingPlan plan = new RollingPlan(hosts(20), 1, 0, 10);
+
+		run(plan, 0, 100);
+		run(plan, 2, 200);
+		assertTrue(plan.hasNext());
+		run(plan, 1, 100);
+		assertFalse(plan.hasNext());
+		assertEquals(3, plan.getFailedHosts());
+		assertNotNull(plan.getAbortReason());
+	}
+
+	@Test
+	public void hostListsAreTrimmed() {
+		assertEquals(Arrays.asList("a", "b", "c"), RollingPlan.parseHosts(" a, b,,c ,"));
+		assertTrue(RollingPlan.parseHosts(null).isEmpty());
+	}
+
+	/**
+	 * Run the next batch of a plan
+	 *
+	 * @param plan The plan
+	 * @param failed Number of hosts of the batch that fail
+	 * @param durationMillis Time the batch takes
+	 * @return The hosts of the batch
+	 */
+	private static List<String> run(RollingPlan plan, int failed, long durationMillis) {
+		List<String> batch = plan.next();
+		plan.record(batch.size(), failed, durationMillis);
+		return batch;
+	}
+
+	private static List<String> hosts(int count) {
+		List<String> hosts = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			hosts.add("host" + i);
+		}
+		return hosts;
+	}
+}
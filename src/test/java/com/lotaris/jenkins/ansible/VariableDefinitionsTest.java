@@ -0,0 +1,71 @@
+package com.lotaris.jenkins.ansible;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VariableDefinitionsTest {
+	@Test
+	public void valuesAreSplitOnTheFirstEqualSignOnly() {
+		Map<String, String> values = VariableDefinitions.parse("OPTS=a=1,b=2").evaluate(new HashMap<String, String>());
+
+		assertEquals("a=1,b=2", values.get("OPTS"));
+	}
+
+	@Test
+	public void definitionsAreEvaluatedAfterTheOnesTheyReference() {
+		Map<String, String> values = VariableDefinitions.parse("URL=http://${HOST}:$PORT\nHOST=example.com\nPORT=8080").evaluate(new HashMap<String, String>());
+
+		assertEquals("http://example.com:8080", values.get("URL"));
+	}
+
+	@Test
+	public void buildVariablesAreReferenced() {
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("BUILD_NUMBER", "42");
+
+		Map<String, String> values = VariableDefinitions.parse("VERSION=1.0.$BUILD_NUMBER").evaluate(variables);
+
+		assertEquals("1.0.42", values.get("VERSION"));
+	}
+
+	@Test
+	public void selfReferenceReadsTheBuildVariable() {
+		Map<String, String> variables = new HashMap<String, String>();
+		variables.put("PATH", "/usr/bin");
+
+		Map<String, String> values = VariableDefinitions.parse("PATH=$PATH:/opt/ansible/bin").evaluate(variables);
+
+		assertEquals("/usr/bin:/opt/ansible/bin", values.get("PATH"));
+	}
+
+	@Test
+	public void unknownReferencesAreKeptAsTyped() {
+		Map<String, String> values = VariableDefinitions.parse("A=$UNKNOWN-${OTHER}").evaluate(new HashMap<String, String>());
+
+		assertEquals("$UNKNOWN-${OTHER}", values.get("A"));
+	}
+
+	@Test
+	public void cyclesAreRejected() {
+		try {
+			VariableDefinitions.parse("A=$B\nB=${C}\nC=$A");
+			fail("The cycle should be rejected");
+		}
+		catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("A -> B -> C -> A"));
+		}
+	}
+
+	@Test
+	public void linesWithoutNameAreIgnored() {
+		VariableDefinitions definitions = VariableDefinitions.parse("\n=value\nnot a definition\nA=1\n");
+
+		assertEquals(1, definitions.getDefinitions().size());
+		assertEquals("1", definitions.getDefinitions().get("A"));
+	}
+}
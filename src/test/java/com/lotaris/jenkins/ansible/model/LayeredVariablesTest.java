@@ -0,0 +1,78 @@
+package com.lotaris.jenkins.ansible.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LayeredVariablesTest {
+	@Test
+	public void topLayerWins() {
+		LayeredVariables variables = LayeredVariables.EMPTY
+			.with("global", map("env", "staging", "region", "eu"))
+			.with("playbook", map("env", "production"));
+
+		assertEquals("production", variables.get("env"));
+		assertEquals("playbook", variables.getLayer("env"));
+		assertEquals("eu", variables.get("region"));
+		assertEquals("global", variables.getLayer("region"));
+		assertNull(variables.get("unknown"));
+		assertNull(variables.getLayer("unknown"));
+	}
+
+	@Test
+	public void lowerLayersAreShared() {
+		LayeredVariables global = LayeredVariables.EMPTY.with("global", map("env", "staging"));
+		LayeredVariables first = global.with("playbook", map("env", "production"));
+		LayeredVariables second = global.with("playbook", map("region", "us"));
+
+		assertEquals("staging", global.get("env"));
+		assertEquals("production", first.get("env"));
+		assertEquals("staging", second.get("env"));
+	}
+
+	@Test
+	public void overrideOnlyReplacesKnownKeys() {
+		LayeredVariables variables = LayeredVariables.EMPTY
+			.with("global", map("hosts", "a,b"))
+			.override("build", map("hosts", "c", "BUILD_NUMBER", "3"));
+
+		assertEquals("c", variables.get("hosts"));
+		assertEquals("build", variables.getLayer("hosts"));
+		assertEquals(Arrays.asList("hosts"), Arrays.asList(variables.keySet().toArray()));
+	}
+
+	@Test
+	public void emptyLayersAreNotAdded() {
+		LayeredVariables global = LayeredVariables.EMPTY.with("global", map("env", "staging"));
+
+		assertSame(global, global.with("playbook", null));
+		assertSame(global, global.with("playbook", new HashMap<String, String>()));
+		assertSame(global, global.with("playbook", map("ignored", null)));
+		assertSame(global, global.override("build", map("other", "value")));
+		assertTrue(LayeredVariables.EMPTY.isEmpty());
+	}
+
+	@Test
+	public void explainTellsTheWinningAndOverriddenLayers() {
+		LayeredVariables variables = LayeredVariables.EMPTY
+			.with("global", map("env", "staging"))
+			.with("playbook", map("env", "production"));
+
+		assertEquals(Arrays.asList("env = production [playbook], overrides [global]"), variables.explain());
+	}
+
+	private static Map<String, String> map(String... keyValues) {
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < keyValues.length; i += 2) {
+			map.put(keyValues[i], keyValues[i + 1]);
+		}
+		return map;
+	}
+}
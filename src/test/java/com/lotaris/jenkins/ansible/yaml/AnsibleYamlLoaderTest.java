@@ -0,0 +1,183 @@
+package com.lotaris.jenkins.ansible.yaml;
+
+import com.lotaris.jenkins.ansible.model.Ansible;
+import com.lotaris.jenkins.ansible.model.Playbook;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AnsibleYamlLoaderTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void includesAreMergedWithTheIncludingFileFirst() throws IOException {
+		File root = write("ansible.yml",
+			"inventory: production\n" +
+			"include:\n" +
+			"  - teams/frontend.yml\n" +
+			"properties:\n" +
+			"  env: production\n" +
+			"playbooks:\n" +
+			"  - name: site\n" +
+			"    file: site.yml\n"
+		);
+		write("teams/frontend.yml",
+			"inventory: staging\n" +
+			"properties:\n" +
+			"  env: staging\n" +
+			"  team: frontend\n" +
+			"playbooks:\n" +
+			"  - name: web\n" +
+			"    file: web.yml\n"
+		);
+
+		Ansible ans = AnsibleYamlLoader.load(root.getPath());
+
+		assertEquals("production", ans.getInventory());
+		assertEquals("production", ans.getProperties().get("env"));
+		assertEquals("frontend", ans.getProperties().get("team"));
+		assertEquals(Arrays.asList("site", "web"), names(ans));
+	}
+
+	@Test
+	public void unchangedConfigurationsAreShared() throws IOException {
+		File root = write("ansible.yml", "playbooks:\n  - name: site\n    file: site.yml\n");
+
+		assertSame(AnsibleYamlLoader.load(root.getPath()), AnsibleYamlLoader.load(root.getPath()));
+	}
+
+	@Test
+	public void changedFragmentsAreParsedAgain() throws IOException {
+		File root = write("ansible.yml", "include:\n  - other.yml\nplaybooks:\n  - name: site\n    file: site.yml\n");
+		write("other.yml", "playbooks:\n  - name: web\n    file: web.yml\n");
+		String fingerprint = AnsibleYamlLoader.fingerprint(root.getPath());
+
+		write("other.yml", "playbooks:\n  - name: database\n    file: database.yml\n");
+
+		assertEquals(Arrays.asList("site", "database"), names(AnsibleYamlLoader.load(root.getPath())));
+		assertFalse(fingerprint.equals(AnsibleYamlLoader.fingerprint(root.getPath())));
+	}
+
+	@Test
+	public void includeCyclesAreRejected() throws IOException {
+		File root = write("a.yml", "include:\n  - b.yml\n");
+		write("b.yml", "include:\n  - a.yml\n");
+
+		try {
+			AnsibleYamlLoader.load(root.getPath());
+			fail("The include cycle should be rejected");
+		}
+		catch (AnsibleConfigurationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("cycle"));
+		}
+	}
+
+	@Test
+	public void diamondIncludesAreNotCycles() throws IOException {
+		File root = write("root.yml", "include:\n  - left.yml\n  - right.yml\n");
+		write("left.yml", "include:\n  - common.yml\n");
+		write("right.yml", "include:\n  - common.yml\n");
+		write("common.yml", "playbooks:\n  - name: common\n    file: common.yml\n");
+
+		assertEquals(Arrays.asList("common"), names(AnsibleYamlLoader.load(root.getPath())));
+	}
+
+	@Test
+	public void duplicatePlaybooksInOneFileAreRejected() throws IOException {
+		File root = write("ansible.yml", "playbooks:\n  - name: site\n    file: a.yml\n  - name: site\n    file: b.yml\n");
+
+		try {
+			AnsibleYamlLoader.load(root.getPath());
+			fail("The duplicate playbook should be rejected");
+		}
+		catch (AnsibleConfigurationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[site] is defined twice"));
+		}
+	}
+
+	@Test
+	public void duplicatePlaybooksAcrossFilesAreRejected() throws IOException {
+		File root = write("ansible.yml", "include:\n  - other.yml\nplaybooks:\n  - name: site\n    file: a.yml\n");
+		write("other.yml", "playbooks:\n  - name: site\n    file: b.yml\n");
+
+		try {
+			AnsibleYamlLoader.load(root.getPath());
+			fail("The duplicate playbook should be rejected");
+		}
+		catch (AnsibleConfigurationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[site] is defined in"));
+		}
+	}
+
+	@Test
+	public void syntaxErrorsTellTheLineAndColumn() throws IOException {
+		File root = write("ansible.yml", "playbooks:\n  - name: site\n   file: [site.yml\n");
+
+		try {
+			AnsibleYamlLoader.load(root.getPath());
+			fail("The syntax error should be reported");
+		}
+		catch (AnsibleConfigurationException e) {
+			assertTrue(e.getMessage(), e.getLine() > 0);
+			assertTrue(e.getMessage(), e.getMessage().contains("at line " + e.getLine() + ", column " + e.getColumn()));
+		}
+	}
+
+	@Test
+	public void sharedConfigurationsAreReadOnly() throws IOException {
+		File root = write("ansible.yml", "vars:\n  env: production\nplaybooks:\n  - name: site\n    file: site.yml\n");
+		Ansible ans = AnsibleYamlLoader.load(root.getPath());
+
+		try {
+			ans.getVars().put("env", "staging");
+			fail("The variables should be read only");
+		}
+		catch (UnsupportedOperationException e) {
+			// Expected
+		}
+
+		try {
+			ans.getPlaybooks().get(0).setFile("other.yml");
+			fail("The playbooks should be read only");
+		}
+		catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	private File write(String path, String content) throws IOException {
+		File file = new File(tmp.getRoot(), path);
+		file.getParentFile().mkdirs();
+
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write(content);
+		}
+		finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	private static List<String> names(Ansible ans) {
+		List<String> names = new ArrayList<String>();
+		for (Playbook playbook : ans.getPlaybooks()) {
+			names.add(playbook.getName());
+		}
+		return names;
+	}
+}